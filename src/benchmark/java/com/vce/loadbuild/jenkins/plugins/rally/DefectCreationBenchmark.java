@@ -0,0 +1,171 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * What {@link CreateRallyDefect#perform} does once it has captured the build: resolving the
+ * names of the job configuration and creating the defect, against a {@link RallyStubServer}.
+ * <p>
+ * With {@code cached} the references are kept the way the descriptor keeps them, without it
+ * every defect resolves them from Rally again.
+ *
+ * @author Frank Rouse
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DefectCreationBenchmark {
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    @Param({"2000"})
+    public int projects;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private RallyStubServer stub;
+    private RallyClientPool rally;
+    private RallyDefectSubmitter submitter;
+    private final AtomicInteger buildNumber = new AtomicInteger();
+    private final PrintStream logger = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+            // The console lines are not what is measured.
+        }
+    });
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new RallyStubServer(projects, 25, latencyMillis);
+        rally = new RallyClientPool(stub.getUri(), "benchmark");
+        submitter = new RallyDefectSubmitter(cached ? new CachingResolver(rally) : new DirectResolver(rally));
+    }
+
+    @TearDown
+    public void tearDown() {
+        rally.close();
+        stub.stop();
+    }
+
+    @Benchmark
+    public RallyDefectResult createDefect() throws IOException {
+        return submitter.submit(newRequest(buildNumber.incrementAndGet()), logger);
+    }
+
+    private RallyDefectRequest newRequest(int number) {
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("Priority", "Value 1");
+        attributes.put("Severity", "Value 2");
+        attributes.put("c_DefectCategory", "Value 3");
+        return new RallyDefectRequest("benchmark/job", number, "job build " + number + " is at status FAILURE",
+                "<a href=\"http://jenkins/job/benchmark/job/" + number + "/console\">Jenkins Log</a>",
+                RallyStubServer.projectName(projects / 2), "builder@example.com",
+                Arrays.asList(CreateRallyDefect.DEFAULT_TAGS), attributes);
+    }
+
+
+    /**
+     * Asks Rally for every reference.
+     */
+    static class DirectResolver implements RallyReferenceResolver {
+        final RallyClientPool rally;
+
+        DirectResolver(RallyClientPool rally) {
+            this.rally = rally;
+        }
+
+        public RallyClientPool getRallyClientPool() {
+            return rally;
+        }
+
+        public String getWorkspaceReference() throws IOException {
+            return RallyUtils.getWorkspaceReference(RallyStubServer.WORKSPACE, rally);
+        }
+
+        public String getProjectReference(String workspaceRef, String projectName) throws IOException {
+            return RallyUtils.getProjectReference(workspaceRef, projectName, rally);
+        }
+
+        public String getUserReference(String userName) throws IOException {
+            return RallyUtils.getUserReference(userName, rally);
+        }
+
+        public String getTagReference(String workspaceRef, String tagName) throws IOException {
+            return RallyUtils.getTagReference(workspaceRef, tagName, rally);
+        }
+    }
+
+
+    /**
+     * Keeps references in the same structures as {@link CreateRallyDefectDescriptor}.
+     */
+    static class CachingResolver extends DirectResolver {
+        private final TtlCache<String, String> references = new TtlCache<String, String>(TimeUnit.MINUTES.toMillis(30), 1000);
+        private final RallyProjectIndex projectIndex;
+
+        CachingResolver(RallyClientPool rally) throws IOException {
+            super(rally);
+            projectIndex = new RallyProjectIndex(super.getWorkspaceReference());
+            projectIndex.refresh(rally);
+        }
+
+        @Override
+        public String getWorkspaceReference() throws IOException {
+            return references.get("workspace", new Callable<String>() {
+                public String call() throws IOException {
+                    return CachingResolver.super.getWorkspaceReference();
+                }
+            });
+        }
+
+        @Override
+        public String getProjectReference(String workspaceRef, String projectName) {
+            return projectIndex.lookup(projectName);
+        }
+
+        @Override
+        public String getUserReference(final String userName) throws IOException {
+            return references.get("user|" + userName, new Callable<String>() {
+                public String call() throws IOException {
+                    return CachingResolver.super.getUserReference(userName);
+                }
+            });
+        }
+
+        @Override
+        public String getTagReference(final String workspaceRef, final String tagName) throws IOException {
+            return references.get("tag|" + workspaceRef + "|" + tagName, new Callable<String>() {
+                public String call() throws IOException {
+                    return CachingResolver.super.getTagReference(workspaceRef, tagName);
+                }
+            });
+        }
+    }
+}
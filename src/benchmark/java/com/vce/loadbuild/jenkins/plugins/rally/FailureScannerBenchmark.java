@@ -0,0 +1,114 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Classifying the console log of a failed build, the only match being on its last line so
+ * the whole log is read. Divide {@code logMegabytes} by the time per operation for the scan
+ * rate in MB/s.
+ * <p>
+ * {@code automaton} is what {@link FailureScanner} does, {@code regexPerPattern} is the
+ * obvious alternative of trying every pattern on every line, for comparison.
+ *
+ * @author Frank Rouse
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 4)
+@Fork(1)
+public class FailureScannerBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Param({"64"})
+    public int logMegabytes;
+
+    // Configured failure signatures.
+    @Param({"10", "200"})
+    public int rules;
+
+    private File log;
+    private FailureScanner scanner;
+    private List<Pattern> patterns;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder text = new StringBuilder();
+        patterns = new ArrayList<Pattern>();
+        for (int i = 0; i < rules; i++) {
+            String pattern = "fatal error E" + (1000 + i) + " in module";
+            text.append(pattern).append("|Signature ").append(i).append("|Category ").append(i % 5).append("\n");
+            patterns.add(Pattern.compile(Pattern.quote(pattern), Pattern.CASE_INSENSITIVE));
+        }
+        scanner = FailureScanner.parse(text.toString());
+
+        log = File.createTempFile("console", ".log");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(log), UTF8));
+        try {
+            long size = 0;
+            for (int line = 0; size < logMegabytes * 1024L * 1024L; line++) {
+                String next = "[INFO] Compiling module " + line % 97 + " file src/main/java/com/example/Class" + line + ".java, warning W" + line % 1000 + "\n";
+                out.write(next);
+                size += next.length();
+            }
+            out.write("[ERROR] FATAL ERROR E" + (1000 + rules - 1) + " IN MODULE core\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.delete();
+    }
+
+    @Benchmark
+    public FailureScanner.Rule automaton() throws IOException {
+        return scanner.scan(log);
+    }
+
+    @Benchmark
+    public int regexPerPattern() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(log), UTF8), 64 * 1024);
+        try {
+            int best = Integer.MAX_VALUE;
+            String line;
+            while ((line = in.readLine()) != null)
+                for (int i = 0; i < best && i < patterns.size(); i++)
+                    if (patterns.get(i).matcher(line).find())
+                        best = i;
+            return best;
+        } finally {
+            in.close();
+        }
+    }
+}
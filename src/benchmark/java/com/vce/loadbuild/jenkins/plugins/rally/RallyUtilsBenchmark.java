@@ -0,0 +1,104 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * The Rally lookups behind the job configuration page and defect creation, against a
+ * {@link RallyStubServer}. Each call goes all the way through the connection pool and
+ * the HTTP client, the caches of the descriptor are not involved.
+ *
+ * @author Frank Rouse
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RallyUtilsBenchmark {
+
+    // Milliseconds the stub waits before answering, 0 to measure the plugin alone.
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    // Projects in the workspace.
+    @Param({"100", "2000"})
+    public int projects;
+
+    // Allowed values of every Defect attribute.
+    @Param({"25"})
+    public int allowedValues;
+
+    private RallyStubServer stub;
+    private RallyClientPool rally;
+    private ExecutorService executor;
+    private String workspaceRef;
+    private String projectName;
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new RallyStubServer(projects, allowedValues, latencyMillis);
+        rally = new RallyClientPool(stub.getUri(), "benchmark");
+        executor = Executors.newFixedThreadPool(RallyClientPool.DEFAULT_MAX_CONNECTIONS);
+        workspaceRef = RallyUtils.getWorkspaceReference(RallyStubServer.WORKSPACE, rally);
+        projectName = RallyStubServer.projectName(projects / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        rally.close();
+        stub.stop();
+    }
+
+    @Benchmark
+    public String getWorkspaceReference() throws IOException {
+        return RallyUtils.getWorkspaceReference(RallyStubServer.WORKSPACE, rally);
+    }
+
+    @Benchmark
+    public String getProjectReference() throws IOException {
+        return RallyUtils.getProjectReference(workspaceRef, projectName, rally);
+    }
+
+    @Benchmark
+    public List<String> allowedFieldValues() throws IOException {
+        return RallyUtils.allowedFieldValues("Defect", "Priority", workspaceRef, rally);
+    }
+
+    @Benchmark
+    public DefectMetadata loadAllowedFieldValues() throws IOException {
+        // Every drop down of the job configuration page in one pass.
+        return RallyUtils.loadAllowedFieldValues("Defect", Arrays.asList(RallyStubServer.DEFECT_FIELDS), workspaceRef, rally, executor);
+    }
+
+    @Benchmark
+    public List<String> listAllRallyProjects() throws IOException {
+        return RallyUtils.listAllRallyProjects(workspaceRef, rally);
+    }
+
+    @Benchmark
+    public List<String> listAllRallyProjectsConcurrently() throws IOException {
+        // The pages after the first read at once, as the project index does.
+        return RallyUtils.listAllRallyProjects(workspaceRef, rally, executor);
+    }
+}
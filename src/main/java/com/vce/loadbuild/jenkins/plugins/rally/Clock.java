@@ -0,0 +1,23 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+
+/**
+ * Time as seen by {@link RallyRateLimiter} and {@link RallyCircuitBreaker}, so that tests can
+ * move it forward instead of waiting.
+ *
+ * @author Frank Rouse
+ */
+abstract class Clock {
+
+    static final Clock SYSTEM = new Clock() {
+        @Override
+        long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return nanoseconds from an arbitrary origin, only differences mean anything.
+     */
+    abstract long nanoTime();
+}
@@ -0,0 +1,134 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.console.ConsoleNote;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Reads the last lines of a build's console log without loading the whole log, which can
+ * be hundreds of megabytes. A plain log is read with a single seek to {@code maxBytes}
+ * before its end, a compressed log has to be inflated but only its last {@code maxBytes}
+ * are ever held in memory.
+ *
+ * @author Frank Rouse
+ */
+public final class ConsoleLogTail {
+
+    private ConsoleLogTail() {
+    }
+
+    /**
+     * @param log - the build's log file, compressed if its name ends with ".gz".
+     * @param maxLines - number of lines to return at most.
+     * @param maxBytes - number of bytes returned from the end at most, whole lines only.
+     * @return the last lines of the log without console notes, empty if the log does not exist.
+     */
+    public static String read(File log, int maxLines, int maxBytes, Charset charset) throws IOException {
+        if (maxLines <= 0 || maxBytes <= 0)
+            return "";
+        log = locate(log);
+        if (log == null)
+            return "";
+
+        // One byte more than asked for, to tell whether the last maxBytes start with a whole line.
+        int window = maxBytes + 1;
+        byte[] tail;
+        if (log.getName().endsWith(".gz")) {
+            InputStream in = new GZIPInputStream(new FileInputStream(log));
+            try {
+                // Ring buffer of the last bytes, the inflated log can be any size.
+                byte[] ring = new byte[window];
+                long total = 0;
+                int n;
+                while ((n = in.read(ring, (int) (total % window), window - (int) (total % window))) > 0)
+                    total += n;
+                boolean wrapped = total > window;
+                tail = new byte[(int) Math.min(total, window)];
+                int start = wrapped ? (int) (total % window) : 0;
+                System.arraycopy(ring, start, tail, 0, Math.min(tail.length, ring.length - start));
+                if (wrapped)
+                    System.arraycopy(ring, 0, tail, ring.length - start, start);
+            } finally {
+                in.close();
+            }
+        } else {
+            RandomAccessFile file = new RandomAccessFile(log, "r");
+            try {
+                // The log of a running build keeps growing, only what is there now is read.
+                long length = file.length();
+                tail = new byte[(int) Math.min(length, window)];
+                file.seek(length - tail.length);
+                file.readFully(tail);
+            } finally {
+                file.close();
+            }
+        }
+
+        int first = 0;
+        boolean cut = false;
+        if (tail.length > maxBytes) {
+            // The extra byte is not returned, it only shows whether a line was cut.
+            first = 1;
+            cut = tail[0] != '\n';
+        }
+        int end = tail.length;
+        // A final line break does not start another line.
+        if (end > first && tail[end - 1] == '\n')
+            end--;
+        int start = end;
+        int lines = 0;
+        while (start > first && lines < maxLines) {
+            if (tail[start - 1] == '\n' && ++lines == maxLines)
+                break;
+            start--;
+        }
+        // The cut went through the middle of the first line, drop what is left of it.
+        if (start == first && cut && lines < maxLines) {
+            while (start < end && tail[start] != '\n')
+                start++;
+            if (start < end)
+                start++;
+        }
+        return ConsoleNote.removeNotes(new String(tail, start, end - start, charset == null ? Charset.defaultCharset() : charset));
+    }
+
+    /**
+     * @return the log, or its compressed form if only that is left, null if there is neither.
+     */
+    static File locate(File log) {
+        if (log == null)
+            return null;
+        if (log.exists())
+            return log;
+        File gz = new File(log.getPath() + ".gz");
+        return gz.exists() ? gz : null;
+    }
+
+    /**
+     * @return the lines as a block of a defect description, empty if there are none.
+     */
+    public static String toHtml(String tail) {
+        if (tail == null || tail.length() == 0)
+            return "";
+        StringBuilder html = new StringBuilder(tail.length() + 64);
+        html.append("<p>Last lines of the console log:</p><pre>");
+        for (int i = 0; i < tail.length(); i++) {
+            char c = tail.charAt(i);
+            switch (c) {
+                case '<':  html.append("&lt;");   break;
+                case '>':  html.append("&gt;");   break;
+                case '&':  html.append("&amp;");  break;
+                case '"':  html.append("&quot;"); break;
+                default:   html.append(c);
+            }
+        }
+        return html.append("</pre>").toString();
+    }
+}
@@ -1,38 +1,39 @@
 package com.vce.loadbuild.jenkins.plugins.rally;
 
+import hudson.FilePath;
+import hudson.Util;
 import hudson.Launcher;
-import hudson.model.AbstractBuild;
-import hudson.model.BuildListener;
 import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.URI;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.kohsuke.stapler.DataBoundConstructor;
+import jenkins.tasks.SimpleBuildStep;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.rallydev.rest.RallyRestApi;
-import com.rallydev.rest.request.CreateRequest;
-import com.rallydev.rest.request.QueryRequest;
-import com.rallydev.rest.request.UpdateRequest;
-import com.rallydev.rest.response.CreateResponse;
-import com.rallydev.rest.response.QueryResponse;
-import com.rallydev.rest.response.UpdateResponse;
-import com.rallydev.rest.util.QueryFilter;
+import org.kohsuke.stapler.DataBoundConstructor;
 
 
 /**
+ * Post-build action of freestyle jobs, also usable from Pipeline through the generic
+ * step, see {@link CreateRallyDefectStep} for the Pipeline step that does not hold the
+ * executor while Rally is called.
  *
  * @author Frank Rouse
  */
-public class CreateRallyDefect extends Notifier {
-
-
-    private final static String RALLY_URL = RallyUtils.RALLY_URL;
+public class CreateRallyDefect extends Notifier implements SimpleBuildStep {
 
+    private static final Logger LOGGER = Logger.getLogger(CreateRallyDefect.class.getName());
 
     // The defect fields
     private final String Project;
@@ -46,10 +47,18 @@ public class CreateRallyDefect extends Notifier {
     private final String whereIntroduced;
     private final String methodToIdentifySimilarDefects;
     private final String titlePrefix;
+    private final String tags;
+    // Ant style patterns of the build artifacts attached to the defect, e.g. "**/TEST-*.xml, **/*.dmp".
+    private final String attachments;
+
+    public static final String DEFAULT_TAGS = "BRM_Build_Failure";
 
     // Boolean to determine if we create a defect if just unstable, default is false.
     private final boolean createDefectIfUnstable;
 
+    // Boolean to determine if a repeated failure is added to the job's open defect instead of filing a new one.
+    private final boolean updateOpenDefect;
+
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
     public CreateRallyDefect(boolean createDefectIfUnstable,
@@ -63,7 +72,10 @@ public class CreateRallyDefect extends Notifier {
                              String whereFound,
                              String whereIntroduced,
                              String methodToIdentifySimilarDefects,
-                             String titlePrefix) {
+                             String titlePrefix,
+                             String tags,
+                             boolean updateOpenDefect,
+                             String attachments) {
         this.Project         = project;
         this.Priority        = priority;
         this.Severity        = severity;
@@ -75,7 +87,10 @@ public class CreateRallyDefect extends Notifier {
         this.whereIntroduced = whereIntroduced;
         this.methodToIdentifySimilarDefects = methodToIdentifySimilarDefects;
         this.titlePrefix     = titlePrefix;
+        this.tags            = tags;
         this.createDefectIfUnstable = createDefectIfUnstable;
+        this.updateOpenDefect = updateOpenDefect;
+        this.attachments     = attachments;
     }
 
     /**
@@ -85,6 +100,10 @@ public class CreateRallyDefect extends Notifier {
         return createDefectIfUnstable;
     }
 
+    public boolean getUpdateOpenDefect() {
+        return updateOpenDefect;
+    }
+
     public String getProject() {
         return Project;
     }
@@ -128,122 +147,136 @@ public class CreateRallyDefect extends Notifier {
         return titlePrefix;
     }
 
-    private String getRallyUserRef(String rallyUserID, RallyRestApi restApi) throws IOException {
-        String user_ref = null;
-        QueryRequest userInfo = new QueryRequest("user");
-        userInfo.setQueryFilter(new QueryFilter("UserName", "=", rallyUserID));
-        QueryResponse queryresponse = restApi.query(userInfo);
-        if (queryresponse.wasSuccessful()) {
-            JsonArray results = queryresponse.getResults();
-            JsonObject user = results.get(0).getAsJsonObject();
-            user_ref = user.get("_ref").getAsString();
-        } else {
-            throw new IOException("Unable to resolve username " + rallyUserID);
-        }
-        return user_ref;
+    /**
+     * @return comma separated names of the Rally tags added to the defect.
+     */
+    public String getTags() {
+        // Jobs configured before tags could be chosen keep the tag that used to be hard coded.
+        return tags == null ? DEFAULT_TAGS : tags;
     }
 
-    private JsonObject getRallyTag(String tagText, RallyRestApi restApi) throws IOException {
-        JsonObject tag = null;
-        QueryRequest tagInfo = new QueryRequest("Tag");
-        tagInfo.setQueryFilter(new QueryFilter("Name", "=", tagText));
-        QueryResponse queryresponse = restApi.query(tagInfo);
-        if (queryresponse.wasSuccessful()) {
-            JsonArray results = queryresponse.getResults();
-            tag = results.get(0).getAsJsonObject();
-        } else {
-            throw new IOException("Unable to resolve tag " + tagText);
+    /**
+     * @return patterns of the artifacts to attach, empty for none.
+     */
+    public String getAttachments() {
+        return Util.fixNull(attachments);
+    }
+
+    private List<String> getTagNames() {
+        List<String> tagNames = new ArrayList<String>();
+        for (String tagName : getTags().split(","))
+            if (tagName.trim().length() > 0)
+                tagNames.add(tagName.trim());
+        return tagNames;
+    }
+
+
+    /**
+     * Captures everything about the failed build that the defect needs.
+     * @param result - the status given in the title, a Pipeline build has none while it runs.
+     */
+    RallyDefectRequest newDefectRequest(Run<?, ?> build, Result result) {
+        FailureScanner.Rule signature = null;
+        try {
+            signature = getDescriptor().getFailureScanner().scan(build.getLogFile());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to scan the console log of " + build.getFullDisplayName(), e);
+        }
+        StringBuilder Name = new StringBuilder();
+        if (getTitlePrefix() != null && getTitlePrefix().trim().length() > 0)
+           Name.append(getTitlePrefix().trim() + " ");
+        Name.append(build.getFullDisplayName().split(" ")[0] + " build " + Integer.toString(build.getNumber()) + " is at status " + result.toString());
+        if (signature != null)
+            Name.append(": " + signature.getSignature());
+        // The getAbsoluteURL is deprecated so that hudson internal software does not reference.
+        // External software that cannot resolve relative references may utilize.
+        // http://javadoc.jenkins-ci.org/hudson/model/Run.html#getAbsoluteUrl()
+        @SuppressWarnings("deprecation")
+        String Description = "<a href=\"" + build.getAbsoluteUrl() + "console\">Jenkins Log</a>";
+        Map<String, String> attributes = new LinkedHashMap<String, String>();
+        attributes.put("Priority",                         getPriority());
+        attributes.put("Severity",                         getSeverity());
+        attributes.put("c_DefectCategory",                 getDefectCategory());
+        attributes.put("c_DefectType",                     getDefectType());
+        attributes.put("c_FoundinVersion",                 getFoundInVersion());
+        attributes.put("c_WhereFound",                     getWhereFound());
+        attributes.put("c_WhereIntroduced",                getWhereIntroduced());
+        attributes.put("c_Methodtoidentifysimilardefects", getmethodToIdentifySimilarDefects());
+        if (signature != null && signature.getCategory().length() > 0)
+            attributes.put("c_DefectCategory", signature.getCategory());
+        if (signature != null && signature.getType().length() > 0)
+            attributes.put("c_DefectType", signature.getType());
+        // A different failure of the job is not a repeat of the open defect.
+        RallyDefectRequest request = new RallyDefectRequest(build.getParent().getFullName(), build.getNumber(), Name.toString(), Description,
+                getProject(), getSubmittedBy(), getTagNames(), attributes,
+                updateOpenDefect ? RallyOpenDefects.key(build.getParent().getFullName(), signature == null ? null : signature.getSignature()) : null);
+        int logTailLines = getDescriptor().getLogTailLines();
+        if (logTailLines > 0) {
+            try {
+                request.setLogTail(ConsoleLogTail.read(build.getLogFile(), logTailLines,
+                        getDescriptor().getLogTailKB() * 1024, build.getCharset()));
+            } catch (IOException e) {
+                // The link to the log is still there.
+                LOGGER.log(Level.WARNING, "Unable to read the console log of " + build.getFullDisplayName(), e);
+            }
         }
-        return tag;
+        if (getAttachments().trim().length() > 0) {
+            try {
+                request.setAttachments(artifactPaths(build));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to list the artifacts of " + build.getFullDisplayName(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return request;
     }
 
+    /**
+     * @return the artifacts matching the attachment patterns, only their paths, the uploads read them later.
+     */
+    @SuppressWarnings("deprecation")
+    private List<String> artifactPaths(Run<?, ?> build) throws IOException, InterruptedException {
+        List<String> paths = new ArrayList<String>();
+        // Artifacts are kept on the master, in the build's directory, unless another artifact manager is installed.
+        File artifactsDir = build.getArtifactsDir();
+        if (artifactsDir.isDirectory())
+            for (FilePath artifact : new FilePath(artifactsDir).list(getAttachments()))
+                paths.add(artifact.getRemote());
+        return paths;
+    }
 
-    @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) {
+
+    /**
+     * Freestyle builds come here too, through Notifier's perform(AbstractBuild, Launcher, BuildListener).
+     */
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) {
 
         if (build.getResult() == Result.FAILURE || (build.getResult() == Result.UNSTABLE && createDefectIfUnstable)) {
 
             try {
-                listener.getLogger().println("01");
-                StringBuilder Name = new StringBuilder();
-                if (getTitlePrefix().trim().length() > 0)
-                   Name.append(getTitlePrefix().trim() + " ");
-                Name.append(build.getFullDisplayName().split(" ")[0] + " build " + Integer.toString(build.getNumber()) + " is at status " + build.getResult().toString());
-                // The getAbsoluteURL is deprecated so that hudson internal software does not reference.
-                // External software that cannot resolve relative references may utilize.
-                // http://javadoc.jenkins-ci.org/hudson/model/Run.html#getAbsoluteUrl()
-                @SuppressWarnings("deprecation")
-                String Description = "<a href=\"" + build.getAbsoluteUrl() + "console\">Jenkins Log</a>";
-                String workspaceRef = RallyUtils.getWorkspaceReference(getDescriptor().getRallyWorkspace(), getDescriptor().getRallyAPIKey());
-                String projectRef = RallyUtils.getProjectReference(workspaceRef, getProject(), getDescriptor().getRallyAPIKey());
+                RallyDefectRequest request = newDefectRequest(build, build.getResult());
                 listener.getLogger().println("... Defect will be created with the following values.");
-                listener.getLogger().println("... Title                           = " + Name);
-                listener.getLogger().println("... Description                     = " + Description);
-                listener.getLogger().println("... Workspace                       = " + workspaceRef);
-                listener.getLogger().println("... Project                         = " + projectRef);
+                listener.getLogger().println("... Title                           = " + request.getName());
+                listener.getLogger().println("... Description                     = " + request.getDescription());
+                listener.getLogger().println("... Project                         = " + getProject());
                 listener.getLogger().println("... Priority                        = " + getPriority());
                 listener.getLogger().println("... Severity                        = " + getSeverity());
                 listener.getLogger().println("... SubmittedBy                     = " + getSubmittedBy());
-                listener.getLogger().println("... DefectCategory                  = " + getDefectCategory());
-                listener.getLogger().println("... DefectType                      = " + getDefectType());
+                listener.getLogger().println("... DefectCategory                  = " + request.getAttributes().get("c_DefectCategory"));
+                listener.getLogger().println("... DefectType                      = " + request.getAttributes().get("c_DefectType"));
                 listener.getLogger().println("... FoundInVersion                  = " + getFoundInVersion());
                 listener.getLogger().println("... WhereFound                      = " + getWhereFound());
                 listener.getLogger().println("... WhereIntroduced                 = " + getWhereIntroduced());
                 listener.getLogger().println("... Methodtoidentifysimilardefects  = " + getmethodToIdentifySimilarDefects());
                 listener.getLogger().println("... Status of Build                 = " + build.getResult().toString());
                 listener.getLogger().println("... Create if unstable              = " + getcreateDefectIfUnstable());
+                listener.getLogger().println("... Tags                            = " + getTags());
+                listener.getLogger().println("... Update open defect              = " + getUpdateOpenDefect());
+                listener.getLogger().println("... Attachments                     = " + request.getAttachments().size() + " files matching " + getAttachments());
 //                listener.getLogger().println("Rally API Key                   = " + getDescriptor().getRallyAPIKey());
-                
-                RallyRestApi restApi = new RallyRestApi(new URI(RALLY_URL), getDescriptor().getRallyAPIKey());
-                JsonObject newDefect = new JsonObject();
-                newDefect.addProperty("Name",                             Name.toString());
-                newDefect.addProperty("Description",                      Description);
-                newDefect.addProperty("Workspace",                        workspaceRef);
-                newDefect.addProperty("Project",                          projectRef);
-                newDefect.addProperty("Priority",                         getPriority());
-                newDefect.addProperty("Severity",                         getSeverity());
-                newDefect.addProperty("SubmittedBy",                      getRallyUserRef(getSubmittedBy(), restApi));
-                newDefect.addProperty("Owner",                            getRallyUserRef(getSubmittedBy(), restApi));
-                newDefect.addProperty("Author",                           getRallyUserRef(getSubmittedBy(), restApi));
-                newDefect.addProperty("c_DefectCategory",                 getDefectCategory());
-                newDefect.addProperty("c_DefectType",                     getDefectType());
-                newDefect.addProperty("c_FoundinVersion",                 getFoundInVersion());
-                newDefect.addProperty("c_WhereFound",                     getWhereFound());
-                newDefect.addProperty("c_WhereIntroduced",                getWhereIntroduced());
-                newDefect.addProperty("c_Methodtoidentifysimilardefects", getmethodToIdentifySimilarDefects());
-                CreateRequest createRequest = new CreateRequest("defect", newDefect);
-                CreateResponse createResponse = restApi.create(createRequest);
-                if (createResponse.wasSuccessful()) {
-                    // Grab the URL reference to the defect
-                    String defectReference = createResponse.getObject().get("_ref").getAsString();
-                    // Grab the defect reference number
-                    String defectNum = defectReference.split("/")[(defectReference.split("/").length - 1)];
-                    // Grab the project number
-                    String projectNum = projectRef.split("/")[(projectRef.split("/").length - 1)];
-                    listener.getLogger().println("... Created new defect " + RallyUtils.RALLY_URL + "/#/" + projectNum + "/detail/defect/" + defectNum);
-                    listener.getLogger().println("... ");
-                    listener.getLogger().println("... Now to add the tags.");
-                    JsonArray Tags = new JsonArray();
-                    Tags.add(getRallyTag("BRM_Build_Failure", restApi));
-                    JsonObject defectUpdate = new JsonObject();
-                    defectUpdate.add("Tags", Tags);
-                    UpdateRequest updateDefectRequest = new UpdateRequest(defectReference, defectUpdate);
-                    UpdateResponse updateDefectResponse = restApi.update(updateDefectRequest);
-                    if (updateDefectResponse.wasSuccessful()) {
-                        listener.getLogger().println("... Tags added successfully.");
-                    } else {
-                        listener.getLogger().println("... Unable to tag defect with BRM_Build_Failure");
-                        for (int i = 0; i < updateDefectResponse.getErrors().length; i++) {
-                            listener.getLogger().println(updateDefectResponse.getErrors()[i]);
-                        }                        
-                    }
-                } else {
-                    listener.getLogger().println("... Unable to create defect");
-                    for (int i = 0; i < createResponse.getErrors().length; i++) {
-                        listener.getLogger().println(createResponse.getErrors()[i]);
-                    }
-                }
-                restApi.close();
+
+                submit(build, request, listener.getLogger());
             } catch (Exception e) {
                 listener.getLogger().println("... Exception when attempting to create defect");
                 listener.getLogger().println("... " + e.getLocalizedMessage());
@@ -253,10 +286,41 @@ public class CreateRallyDefect extends Notifier {
                 listener.getLogger().println("... No defect created");
             }
         } else {
+            if (build.getResult() == Result.SUCCESS)
+                // The failure is fixed, the next one deserves a defect of its own.
+                getDescriptor().getOpenDefects().resolved(build.getParent().getFullName());
             listener.getLogger().println("... No defect created");
         }
-        // Always return true so if something is wrong with this code it won't mark the build as a failure.
-        return true;
+        // Never throw so if something is wrong with this code it won't mark the build as a failure.
+    }
+
+    /**
+     * Hands the defect to the failure storm, to the queue when defects are created asynchronously,
+     * or to Rally on this thread. Shared by {@link #perform} and {@link CreateRallyDefectStep}.
+     * @return the defect created on this thread, already linked from the build, otherwise null:
+     *         held for a failure storm defect, queued, put aside in the outbox or refused by Rally.
+     */
+    RallyDefectResult submit(Run<?, ?> build, RallyDefectRequest request, PrintStream logger) throws IOException {
+        CreateRallyDefectDescriptor descriptor = getDescriptor();
+        if (descriptor.getFailureStorm().absorb(request)) {
+            logger.println("... Many builds are failing at once, this build will be listed on a failure storm defect.");
+            return null;
+        }
+        RallyDefectQueue defectQueue = descriptor.getDefectQueue();
+        if (descriptor.isCreateAsynchronously()) {
+            // Free the executor now, the link to the defect is added to the build once it exists.
+            if (defectQueue.enqueue(request))
+                logger.println("... Defect queued for creation, a link will be added to this build once it exists.");
+            else
+                logger.println("... A defect for this build is already waiting to be created.");
+            return null;
+        }
+        // Null when Rally could not be reached, the outbox retries it and links the build later.
+        RallyDefectResult result = defectQueue.createNow(request, logger);
+        if (result == null || !result.isCreated())
+            return null;
+        build.addAction(new RallyDefectAction(result));
+        return result;
     }
 
     // Overridden for better type safety.
@@ -269,6 +333,7 @@ public class CreateRallyDefect extends Notifier {
 
     @Override
     public BuildStepMonitor getRequiredMonitorService() {
-        return BuildStepMonitor.BUILD;
+        // Nothing here depends on the outcome of this step in earlier builds.
+        return BuildStepMonitor.NONE;
     }
 }
\ No newline at end of file
@@ -2,30 +2,44 @@ package com.vce.loadbuild.jenkins.plugins.rally;
 
 import hudson.Extension;
 import hudson.model.AbstractProject;
+import hudson.model.AutoCompletionCandidates;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
 
 import net.sf.json.JSONObject;
 
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import com.google.gson.JsonArray;
-import com.rallydev.rest.RallyRestApi;
-import com.rallydev.rest.request.QueryRequest;
-import com.rallydev.rest.response.QueryResponse;
-import com.rallydev.rest.util.QueryFilter;
-
 
 @Extension // This indicates to Jenkins that this is an implementation of an extension point.
-public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publisher> {
+public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publisher> implements RallyReferenceResolver {
+
+    private static final Logger LOGGER = Logger.getLogger(CreateRallyDefectDescriptor.class.getName());
+
     /**
      * To persist global configuration information,
      * simply store it in a field and call save().
@@ -40,6 +54,120 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
     // Local holder of the Workspace
     private String RallyWorkspace;
 
+    // Rally server, normally the hosted one but e.g. a stand-in for load tests.
+    private String RallyURL = RallyUtils.RALLY_URL;
+
+    // Create defects on background workers instead of the build's executor.
+    private boolean CreateAsynchronously = false;
+
+    // How long, in minutes, allowed values read from Rally are reused.
+    private int MetadataCacheTtl = DEFAULT_METADATA_CACHE_TTL;
+
+    // Maximum number of workspaces whose allowed values are held in memory.
+    private int MetadataCacheSize = DEFAULT_METADATA_CACHE_SIZE;
+
+    // Number of failures within StormWindow minutes that are reported on one umbrella defect, 0 disables.
+    private int StormThreshold = RallyFailureStorm.DEFAULT_THRESHOLD;
+
+    private int StormWindow = RallyFailureStorm.DEFAULT_WINDOW_MINUTES;
+
+    // Number of console log lines shown on the defect, 0 for just the link to the log.
+    private int LogTailLines = DEFAULT_LOG_TAIL_LINES;
+
+    // Most of the log read for those lines, in KB, so a log of very long lines cannot bloat the defect.
+    private int LogTailKB = DEFAULT_LOG_TAIL_KB;
+
+    // Rules classifying failures by their console log, one pattern|signature|category|type per line.
+    private String FailureSignatures;
+
+    // Most requests sent to Rally per second, 0 for no limit.
+    private int RateLimit = RallyRateLimiter.DEFAULT_REQUESTS_PER_SECOND;
+
+    // Most requests waiting on Rally at once, 0 for no limit.
+    private int MaxInFlight = RallyRateLimiter.DEFAULT_MAX_IN_FLIGHT;
+
+    // Seconds every request is held back after Rally throttled one without saying for how long.
+    private int ThrottlePause = RallyRateLimiter.DEFAULT_THROTTLE_PAUSE;
+
+    // Seconds to wait for a connection to Rally, and for Rally to send anything.
+    private int ConnectTimeout = RallyClientPool.DEFAULT_CONNECT_TIMEOUT;
+    private int ReadTimeout    = RallyClientPool.DEFAULT_READ_TIMEOUT;
+
+    // Consecutive failures after which Rally is not called for BreakerOpenTime seconds, 0 to always call it.
+    private int BreakerThreshold = RallyCircuitBreaker.DEFAULT_FAILURE_THRESHOLD;
+    private int BreakerOpenTime  = RallyCircuitBreaker.DEFAULT_OPEN_SECONDS;
+
+    // Most the artifacts attached to one defect may add up to, in MB.
+    private int AttachmentBudget = RallyAttachmentUploader.DEFAULT_BUDGET_MB;
+
+    // The rules compiled, replaced whenever they are configured.
+    private transient volatile FailureScanner failureScanner = FailureScanner.EMPTY;
+
+    public static final int DEFAULT_METADATA_CACHE_TTL  = 60;
+    public static final int DEFAULT_METADATA_CACHE_SIZE = 20;
+    public static final int DEFAULT_LOG_TAIL_LINES      = 100;
+    public static final int DEFAULT_LOG_TAIL_KB         = 16;
+
+    // The Defect fields whose allowed values are offered as drop downs on the job configuration page.
+    private static final String[] DEFECT_FIELDS = {"Priority", "Severity", "Defect Category", "Defect Type",
+            "Found in Version", "Where Found", "Where Introduced?", "Method to identify similar defects"};
+
+    // Rally connections shared by every build and form request, one pool per API key.
+    private transient volatile RallyClientRegistry rallyClients;
+
+    // Allowed values of all DEFECT_FIELDS keyed by workspace reference.
+    private transient TtlCache<String, DefectMetadata> metadataCache;
+
+    // Project name and path lookups keyed by workspace reference.
+    private transient final ConcurrentMap<String, RallyProjectIndex> projectIndexes = new ConcurrentHashMap<String, RallyProjectIndex>();
+
+    // Projects not found even after a refresh of the index, keyed by workspace reference and name, so a
+    // misconfigured job does not refresh the index on every build.
+    private transient final TtlCache<String, String> projectMisses = new TtlCache<String, String>(NOT_FOUND_TTL, PROJECT_MISS_CACHE_SIZE);
+
+    // Rally workspace references keyed by workspace name.
+    private transient final TtlCache<String, String> workspaceCache = new TtlCache<String, String>(REFERENCE_CACHE_TTL, WORKSPACE_CACHE_SIZE);
+
+    // Rally user references keyed by user id. Unknown users are remembered briefly as NOT_FOUND.
+    private transient final TtlCache<String, String> userCache = new TtlCache<String, String>(REFERENCE_CACHE_TTL, USER_CACHE_SIZE);
+
+    // Rally tag references keyed by workspace reference and tag name. Unknown tags are remembered briefly as NOT_FOUND.
+    private transient final TtlCache<String, String> tagCache = new TtlCache<String, String>(REFERENCE_CACHE_TTL, TAG_CACHE_SIZE);
+
+    private static final long   REFERENCE_CACHE_TTL = TimeUnit.MINUTES.toMillis(30);
+    private static final int    WORKSPACE_CACHE_SIZE = 10;
+    private static final int    USER_CACHE_SIZE     = 1000;
+    // Users looked up by one query when the cache is refreshed, small enough for the query to fit in a URL.
+    private static final int    USER_REFRESH_BATCH  = 50;
+    private static final int    TAG_CACHE_SIZE      = 200;
+    private static final int    PROJECT_MISS_CACHE_SIZE = 200;
+    private static final long   NOT_FOUND_TTL       = TimeUnit.MINUTES.toMillis(1);
+    private static final String NOT_FOUND           = "";
+    // Suggestions sent back per keystroke on the Project field.
+    private static final int    MAX_PROJECT_COMPLETIONS = 20;
+
+    // Open defects of failing jobs, updated by repeated failures rather than filing new defects.
+    private transient final RallyOpenDefects openDefects = new RallyOpenDefects(new File(Jenkins.getInstance().getRootDir(), "rally-open-defects.xml"));
+
+    // Shared by every connection to Rally, whichever server and key.
+    private transient final RallyRateLimiter rateLimiter = new RallyRateLimiter();
+
+    // Fails requests at once while Rally is down, whichever server and key.
+    private transient final RallyCircuitBreaker circuitBreaker = new RallyCircuitBreaker();
+
+    // Uploads the artifacts chosen by the jobs, a couple at a time.
+    private transient final RallyAttachmentUploader attachmentUploader = new RallyAttachmentUploader();
+
+    // Creates defects, in the background when CreateAsynchronously is set, and retries those Rally did not take.
+    private transient final RallyDefectQueue defectQueue = new RallyDefectQueue(new RallyDefectSubmitter(this, openDefects, attachmentUploader),
+            new RallyDefectOutbox(new File(Jenkins.getInstance().getRootDir(), "rally-defect-outbox")));
+
+    // Holds back the defects of mass failures for an umbrella defect.
+    private transient final RallyFailureStorm failureStorm;
+
+    // Runs Rally queries that can proceed in parallel. Threads are only kept while there is work.
+    private transient final ThreadPoolExecutor rallyExecutor = newRallyExecutor();
+
     /**
      * In order to load the persisted global configuration, you have to 
      * call load() in the constructor.
@@ -47,6 +175,251 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
     public CreateRallyDefectDescriptor() {
         super(CreateRallyDefect.class);
         load();
+        rateLimiter.configure(RateLimit, MaxInFlight, ThrottlePause);
+        circuitBreaker.configure(BreakerThreshold, BreakerOpenTime);
+        rallyClients = new RallyClientRegistry(URI.create(getRallyURL()), rateLimiter, circuitBreaker);
+        rallyClients.setTimeouts(ConnectTimeout, ReadTimeout);
+        metadataCache = newMetadataCache();
+        registerMetrics();
+        failureStorm = new RallyFailureStorm(defectQueue, new File(Jenkins.getInstance().getRootDir(), "rally-failure-storm.xml"));
+        failureStorm.configure(StormThreshold, StormWindow);
+        attachmentUploader.configure(AttachmentBudget);
+        try {
+            failureScanner = FailureScanner.parse(FailureSignatures);
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Ignoring the failure signatures, " + e.getMessage());
+        }
+        // Only now can a batch left by the previous run be flushed.
+        failureStorm.start();
+        // Read what the forms and builds need before anyone asks for it.
+        rallyExecutor.execute(new Runnable() {
+            public void run() {
+                refreshRallyData();
+            }
+        });
+    }
+
+    private TtlCache<String, DefectMetadata> newMetadataCache() {
+        TtlCache<String, DefectMetadata> cache = new TtlCache<String, DefectMetadata>(TimeUnit.MINUTES.toMillis(MetadataCacheTtl), MetadataCacheSize);
+        RallyMetrics.get().registerCache("metadata", cache);
+        return cache;
+    }
+
+    private void registerMetrics() {
+        RallyMetrics metrics = RallyMetrics.get();
+        metrics.registerCache("workspace", workspaceCache);
+        metrics.registerCache("user", userCache);
+        metrics.registerCache("tag", tagCache);
+        metrics.registerGauge("rally_defect_queue_depth", "Defects waiting for a worker.", new RallyMetrics.Gauge() {
+            public long value() {
+                return defectQueue.getQueueDepth();
+            }
+        });
+        metrics.registerGauge("rally_requests_in_flight", "Requests sent to Rally and not answered yet.", new RallyMetrics.Gauge() {
+            public long value() {
+                return rateLimiter.getInFlight();
+            }
+        });
+        metrics.registerGauge("rally_rate_limiter_waiting_writes", "Defect creates and updates waiting for a turn to call Rally.", new RallyMetrics.Gauge() {
+            public long value() {
+                return rateLimiter.getWaitingWrites();
+            }
+        });
+        metrics.registerGauge("rally_rate_limiter_waiting_reads", "Reads waiting for a turn to call Rally, they go after the writes.", new RallyMetrics.Gauge() {
+            public long value() {
+                return rateLimiter.getWaitingReads();
+            }
+        });
+        metrics.registerGauge("rally_circuit_breaker_state", "0 while Rally is called normally, 1 while requests fail at once, 2 while a trial request is allowed.", new RallyMetrics.Gauge() {
+            public long value() {
+                return circuitBreaker.getState().ordinal();
+            }
+        });
+        metrics.registerGauge("rally_defect_outbox_pending", "Defects not created in Rally yet, including those waiting for a retry.", new RallyMetrics.Gauge() {
+            public long value() {
+                return defectQueue.getPendingCount();
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor newRallyExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(RallyClientPool.DEFAULT_MAX_CONNECTIONS, RallyClientPool.DEFAULT_MAX_CONNECTIONS,
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Create Rally Defect"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return reference of the configured workspace, null if Rally does not know it.
+     * @throws IOException
+     */
+    public String getWorkspaceReference() throws IOException {
+        final String workspaceName = RallyWorkspace;
+        final RallyClientPool rally = getRallyClientPool();
+        return workspaceCache.get(workspaceName, new Callable<String>() {
+            public String call() throws IOException {
+                return RallyUtils.getWorkspaceReference(workspaceName, rally);
+            }
+        }, rallyExecutor);
+    }
+
+    /**
+     * @return the allowed values of every Defect field offered on the job configuration page, read
+     *         from Rally in a single pass and served from the metadata cache while it is fresh.
+     * @throws IOException
+     */
+    public DefectMetadata getDefectMetadata() throws IOException {
+        final String workspaceRef = getWorkspaceReference();
+        final RallyClientPool rally = getRallyClientPool();
+        return metadataCache.get(workspaceRef, new Callable<DefectMetadata>() {
+            public DefectMetadata call() throws IOException {
+                return RallyUtils.loadAllowedFieldValues("Defect", Arrays.asList(DEFECT_FIELDS), workspaceRef, rally, rallyExecutor);
+            }
+        }, rallyExecutor);
+    }
+
+    /**
+     * @param field - Example "Found in Version"
+     * @return the allowed values of the Defect field in the configured workspace.
+     * @throws IOException
+     */
+    public List<String> getAllowedValues(String field) throws IOException {
+        return getDefectMetadata().getAllowedValues(field);
+    }
+
+    /**
+     * @param workspaceRef Rally workspace ref
+     * @param projectName - project name or full project path, case is ignored.
+     * @return Rally project reference if found, null if nothing found or there is no workspace.
+     * @throws IOException
+     */
+    public String getProjectReference(String workspaceRef, String projectName) throws IOException {
+        if (workspaceRef == null || projectName == null)
+            return null;
+        RallyProjectIndex index = getProjectIndex(workspaceRef);
+        String projectRef = index.lookup(projectName);
+        String key = workspaceRef + "|" + projectName.trim().toLowerCase(Locale.ENGLISH);
+        if (projectRef == null && projectMisses.get(key) == null) {
+            // The project may have been created since the index was last refreshed.
+            index.refresh(getRallyClientPool(), rallyExecutor);
+            projectRef = index.lookup(projectName);
+            if (projectRef == null)
+                projectMisses.put(key, NOT_FOUND);
+        }
+        return projectRef;
+    }
+
+    /**
+     * @return the project index of the workspace, loaded on first use and refreshed in the background afterwards,
+     *         null if there is no workspace.
+     * @throws IOException
+     */
+    private RallyProjectIndex getProjectIndex(String workspaceRef) throws IOException {
+        if (workspaceRef == null)
+            return null;
+        RallyProjectIndex index = projectIndexes.get(workspaceRef);
+        if (index == null) {
+            RallyProjectIndex newIndex = new RallyProjectIndex(workspaceRef);
+            index = projectIndexes.putIfAbsent(workspaceRef, newIndex);
+            if (index == null)
+                index = newIndex;
+        }
+        if (!index.isLoaded())
+            index.refresh(getRallyClientPool(), rallyExecutor);
+        else
+            index.refreshInBackground(getRallyClientPool(), rallyExecutor);
+        return index;
+    }
+
+    /**
+     * Shared by the publisher and the form validation so a user id is normally resolved only once.
+     * @param userName - Rally user id
+     * @return Rally user reference, null if Rally does not know the user.
+     * @throws IOException
+     */
+    public String getUserReference(final String userName) throws IOException {
+        final RallyClientPool rally = getRallyClientPool();
+        String userRef = userCache.get(userName, new Callable<String>() {
+            public String call() throws IOException {
+                return RallyUtils.getUserReference(userName, rally);
+            }
+        });
+        if (userRef == null) {
+            // Remember briefly so a misconfigured job or a user still typing does not query Rally every time.
+            userCache.put(userName, NOT_FOUND, NOT_FOUND_TTL);
+            return null;
+        }
+        return NOT_FOUND.equals(userRef) ? null : userRef;
+    }
+
+    /**
+     * @param workspaceRef Rally workspace ref
+     * @param tagName - Example "BRM_Build_Failure"
+     * @return Rally tag reference, null if the workspace has no such tag.
+     * @throws IOException
+     */
+    public String getTagReference(final String workspaceRef, final String tagName) throws IOException {
+        String key = workspaceRef + "|" + tagName;
+        final RallyClientPool rally = getRallyClientPool();
+        String tagRef = tagCache.get(key, new Callable<String>() {
+            public String call() throws IOException {
+                return RallyUtils.getTagReference(workspaceRef, tagName, rally);
+            }
+        });
+        if (tagRef == null) {
+            tagCache.put(key, NOT_FOUND, NOT_FOUND_TTL);
+            return null;
+        }
+        return NOT_FOUND.equals(tagRef) ? null : tagRef;
+    }
+
+    /**
+     * Reads the workspace, allowed values, projects and known users from Rally again. Cached
+     * values are only replaced once the new ones have been read, so readers never wait for this.
+     * Run once after start up and then by {@link RallyDataRefresher}.
+     */
+    void refreshRallyData() {
+        if (RallyAPIKey == null || RallyAPIKey.length() == 0 || RallyWorkspace == null || RallyWorkspace.length() == 0)
+            return;
+        RallyClientPool rally = getRallyClientPool();
+        try {
+            String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, rally);
+            if (workspaceRef == null)
+                return;
+            workspaceCache.put(RallyWorkspace, workspaceRef);
+            metadataCache.put(workspaceRef, RallyUtils.loadAllowedFieldValues("Defect", Arrays.asList(DEFECT_FIELDS), workspaceRef, rally, rallyExecutor));
+            // An index read for the first time is already up to date.
+            RallyProjectIndex index = projectIndexes.get(workspaceRef);
+            if (index != null && index.isLoaded())
+                index.refresh(rally, rallyExecutor);
+            else
+                getProjectIndex(workspaceRef);
+            // A few queries for all known users rather than one each, the builds need the rate limit more.
+            List<String> userNames = userCache.keys();
+            for (int i = 0; i < userNames.size(); i += USER_REFRESH_BATCH) {
+                List<String> batch = userNames.subList(i, Math.min(i + USER_REFRESH_BATCH, userNames.size()));
+                for (Map.Entry<String, String> user : RallyUtils.getUserReferences(batch, rally).entrySet())
+                    userCache.put(user.getKey(), user.getValue());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to refresh the Rally data of workspace " + RallyWorkspace, e);
+        }
+    }
+
+    /**
+     * Discards the cached allowed values and reads them again from Rally.
+     * Called from the "Refresh Rally metadata now" button in global.jelly.
+     */
+    public FormValidation doRefreshMetadata() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        metadataCache.invalidateAll();
+        try {
+            getDefectMetadata();
+        } catch (IOException e) {
+            return FormValidation.error("Unable to refresh Rally metadata.\n" + e.getLocalizedMessage());
+        }
+        return FormValidation.ok("Rally metadata refreshed.");
     }
 
 
@@ -61,34 +434,87 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
      *      Note that returning {@link FormValidation#error(String)} does not
      *      prevent the form from being saved. It just means that a message
      *      will be displayed to the user. 
-     * @throws URISyntaxException 
      */
+    public FormValidation doCheckRallyURL(@QueryParameter String value) {
+        try {
+            URI server = new URI(normalizeURL(value));
+            if (!"https".equals(server.getScheme()) && !"http".equals(server.getScheme()))
+                return FormValidation.error("The Rally server URL must start with https:// or http://");
+            if (!"https".equals(server.getScheme()))
+                return FormValidation.warning("The API key is sent unencrypted over http.");
+        } catch (URISyntaxException e) {
+            return FormValidation.error("Not a valid URL: " + e.getLocalizedMessage());
+        }
+        return FormValidation.ok();
+    }
+
+    private static String normalizeURL(String url) {
+        url = url == null ? "" : url.trim();
+        if (url.length() == 0)
+            return RallyUtils.RALLY_URL;
+        while (url.endsWith("/"))
+            url = url.substring(0, url.length() - 1);
+        return url;
+    }
+
+    public FormValidation doCheckFailureSignatures(@QueryParameter String value) {
+        return checkFailureSignatures(value);
+    }
+
+    static FormValidation checkFailureSignatures(String value) {
+        try {
+            int rules = FailureScanner.parse(value).getRules().size();
+            return rules == 0 ? FormValidation.ok() : FormValidation.ok(rules + " failure signatures");
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
     public FormValidation doCheckSubmittedBy(@QueryParameter String value) {
-        QueryResponse queryresponse = null;
+        String userRef = null;
         try {
             if (value.length() == 0)
                 return FormValidation.error("Please set a rally user id.");
             else if (value.length() < 4)
                 return FormValidation.warning("Isn't the user id too short?");
-            RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RallyAPIKey);
-            restApi.setApplicationName("TestDefectCreation");
-            QueryRequest userInfo = new QueryRequest("user");
-            userInfo.setQueryFilter(new QueryFilter("UserName", "=", value));
-            queryresponse = restApi.query(userInfo);
-            // Close the restApi regardless of the outcome of the following tests.
-            restApi.close();
+            userRef = getUserReference(value);
         } catch (Exception e) {
             return FormValidation.error("Exception when attempting to validate rally user id.\n" +
                     e.getLocalizedMessage() + "\nEnsure that the correct Rally API key is entered under the\n\"Manage Jenkins=>Configure System=>Create Rally Defect=>Rally API Key\" field.");
         }
-        if (queryresponse.wasSuccessful()) {
-            JsonArray results = queryresponse.getResults();
-            if (results.size() > 0)
-                return FormValidation.ok();
-        }
+        if (userRef != null)
+            return FormValidation.ok();
         return FormValidation.error("Unable to validate rally user id \"" + value + "\"");
     }
 
+    public FormValidation doCheckProject(@QueryParameter String value) {
+        if (value.trim().length() == 0)
+            return FormValidation.error("Please set a Rally project.");
+        try {
+            // Checked as the user types, so only against the index. A project created since its last refresh shows up within minutes.
+            String workspaceRef = getWorkspaceReference();
+            if (workspaceRef != null && getProjectIndex(workspaceRef).lookup(value) == null)
+                return FormValidation.error("No project \"" + value + "\" in workspace " + RallyWorkspace);
+        } catch (Exception e) {
+            return FormValidation.warning("Unable to check the project: " + e.getLocalizedMessage());
+        }
+        return FormValidation.ok();
+    }
+
+    /**
+     * Suggests project names and paths as the user types. The job configuration page used to carry
+     * every project of the workspace in a drop down, now only the matches for what was typed are sent.
+     */
+    public AutoCompletionCandidates doAutoCompleteProject(@QueryParameter String value) throws IOException {
+        AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+        String workspaceRef = getWorkspaceReference();
+        if (workspaceRef == null)
+            return candidates;
+        for (String project : getProjectIndex(workspaceRef).complete(value, MAX_PROJECT_COMPLETIONS))
+            candidates.add(project);
+        return candidates;
+    }
+
 
     /**
      * doFillXXXXXXItems
@@ -96,94 +522,76 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
      * the first letter is capitalized to reflect camel case.
      * @return
      * @throws IOException 
-     * @throws URISyntaxException 
      * While you can set the default value for the drop down here if you do the default will be recalculated every
      * time the config window is open. If you would like to preserve previous selections it is better to put the
      * default value in the config.jelly file as this is only read once and will therefore preserve previous
      * modifications.
      */
-    public ListBoxModel doFillProjectItems() throws URISyntaxException, IOException {
-        ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.listAllRallyProjects(workspaceRef, RallyAPIKey);
-        for (String tempString: fieldValues)
-            items.add(tempString, tempString);
-        return items;
-    }
-
-    public ListBoxModel doFillPriorityItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillPriorityItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Priority", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Priority");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
-    public ListBoxModel doFillSeverityItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillSeverityItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Severity", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Severity");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillDefectCategoryItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillDefectCategoryItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Defect Category", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Defect Category");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillDefectTypeItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillDefectTypeItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Defect Type", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Defect Type");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillFoundInVersionItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillFoundInVersionItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Found in Version", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Found in Version");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillWhereFoundItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillWhereFoundItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Where Found", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Where Found");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillWhereIntroducedItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillWhereIntroducedItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Where Introduced?", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Where Introduced?");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
     }
 
 
-    public ListBoxModel doFillMethodToIdentifySimilarDefectsItems() throws URISyntaxException, IOException {
+    public ListBoxModel doFillMethodToIdentifySimilarDefectsItems() throws IOException {
         ListBoxModel items = new ListBoxModel();
-        String workspaceRef = RallyUtils.getWorkspaceReference(RallyWorkspace, RallyAPIKey);
-        ArrayList<String> fieldValues = RallyUtils.allowedFieldValues("Defect", "Method to identify similar defects", workspaceRef, RallyAPIKey);
+        List<String> fieldValues = getAllowedValues("Method to identify similar defects");
         for (String tempString: fieldValues)
             items.add(tempString, tempString);
         return items;
@@ -205,8 +613,76 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
     public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
         // To persist global configuration information,
         // set that to properties and call save().
-        RallyAPIKey    = formData.getString("rallyAPIKey");
-        RallyWorkspace = formData.getString("rallyWorkspace");
+        // The fields that can be rejected are checked before anything changes, so a rejected form leaves the running
+        // configuration as it was.
+        String rallyURL = normalizeURL(formData.optString("rallyURL", RallyUtils.RALLY_URL));
+        URI server;
+        try {
+            server = URI.create(rallyURL);
+        } catch (IllegalArgumentException e) {
+            throw new FormException("Invalid Rally Server URL " + rallyURL, "rallyURL");
+        }
+        String failureSignatures = formData.optString("failureSignatures");
+        FailureScanner scanner;
+        try {
+            scanner = FailureScanner.parse(failureSignatures);
+        } catch (IllegalArgumentException e) {
+            throw new FormException(e.getMessage(), "failureSignatures");
+        }
+        String rallyAPIKey    = formData.getString("rallyAPIKey");
+        String rallyWorkspace = formData.getString("rallyWorkspace");
+
+        String previousURL = getRallyURL();
+        RallyURL = rallyURL;
+        if (!previousURL.equals(RallyURL)) {
+            RallyClientRegistry previousClients = rallyClients;
+            rallyClients = new RallyClientRegistry(server, rateLimiter, circuitBreaker);
+            previousClients.close();
+            // Nothing read from the previous server applies to the new one.
+            workspaceCache.invalidateAll();
+            metadataCache.invalidateAll();
+            userCache.invalidateAll();
+            tagCache.invalidateAll();
+            projectMisses.invalidateAll();
+            projectIndexes.clear();
+        }
+        String previousAPIKey = RallyAPIKey;
+        RallyAPIKey    = rallyAPIKey;
+        // Connections opened with a replaced key are of no further use.
+        if (previousAPIKey != null && !previousAPIKey.equals(RallyAPIKey)) {
+            rallyClients.evict(previousAPIKey);
+            // A different key may see a different set of users and workspaces.
+            userCache.invalidateAll();
+            workspaceCache.invalidateAll();
+        }
+        MetadataCacheTtl  = formData.optInt("metadataCacheTtl", DEFAULT_METADATA_CACHE_TTL);
+        MetadataCacheSize = formData.optInt("metadataCacheSize", DEFAULT_METADATA_CACHE_SIZE);
+        if (metadataCache.getTtlMillis() != TimeUnit.MINUTES.toMillis(MetadataCacheTtl) || metadataCache.getMaxEntries() != MetadataCacheSize)
+            metadataCache = newMetadataCache();
+        String previousWorkspace = RallyWorkspace;
+        RallyWorkspace = rallyWorkspace;
+        if (previousWorkspace != null && !previousWorkspace.equals(RallyWorkspace))
+            workspaceCache.invalidate(previousWorkspace);
+        CreateAsynchronously = formData.optBoolean("createAsynchronously");
+        StormThreshold = formData.optInt("stormThreshold", RallyFailureStorm.DEFAULT_THRESHOLD);
+        StormWindow    = formData.optInt("stormWindow", RallyFailureStorm.DEFAULT_WINDOW_MINUTES);
+        failureStorm.configure(StormThreshold, StormWindow);
+        LogTailLines   = formData.optInt("logTailLines", DEFAULT_LOG_TAIL_LINES);
+        LogTailKB      = formData.optInt("logTailKB", DEFAULT_LOG_TAIL_KB);
+        RateLimit     = formData.optInt("rateLimit", RallyRateLimiter.DEFAULT_REQUESTS_PER_SECOND);
+        MaxInFlight   = formData.optInt("maxInFlight", RallyRateLimiter.DEFAULT_MAX_IN_FLIGHT);
+        ThrottlePause = formData.optInt("throttlePause", RallyRateLimiter.DEFAULT_THROTTLE_PAUSE);
+        rateLimiter.configure(RateLimit, MaxInFlight, ThrottlePause);
+        ConnectTimeout   = formData.optInt("connectTimeout", RallyClientPool.DEFAULT_CONNECT_TIMEOUT);
+        ReadTimeout      = formData.optInt("readTimeout", RallyClientPool.DEFAULT_READ_TIMEOUT);
+        rallyClients.setTimeouts(ConnectTimeout, ReadTimeout);
+        BreakerThreshold = formData.optInt("breakerThreshold", RallyCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        BreakerOpenTime  = formData.optInt("breakerOpenTime", RallyCircuitBreaker.DEFAULT_OPEN_SECONDS);
+        circuitBreaker.configure(BreakerThreshold, BreakerOpenTime);
+        AttachmentBudget = formData.optInt("attachmentBudget", RallyAttachmentUploader.DEFAULT_BUDGET_MB);
+        attachmentUploader.configure(AttachmentBudget);
+        failureScanner    = scanner;
+        FailureSignatures = failureSignatures;
         save();
         return super.configure(req,formData);
     }
@@ -224,4 +700,96 @@ public final class CreateRallyDefectDescriptor extends BuildStepDescriptor<Publi
     public String getRallyWorkspace() {
         return RallyWorkspace;
     }
+
+    public String getRallyURL() {
+        // Configurations saved before the server could be chosen use the hosted Rally.
+        return RallyURL == null ? RallyUtils.RALLY_URL : RallyURL;
+    }
+
+    public boolean isCreateAsynchronously() {
+        return CreateAsynchronously;
+    }
+
+    public RallyDefectQueue getDefectQueue() {
+        return defectQueue;
+    }
+
+    public RallyOpenDefects getOpenDefects() {
+        return openDefects;
+    }
+
+    public RallyFailureStorm getFailureStorm() {
+        return failureStorm;
+    }
+
+    public int getStormThreshold() {
+        return StormThreshold;
+    }
+
+    public int getStormWindow() {
+        return StormWindow;
+    }
+
+    public int getLogTailLines() {
+        return LogTailLines;
+    }
+
+    public int getLogTailKB() {
+        return LogTailKB;
+    }
+
+    public int getRateLimit() {
+        return RateLimit;
+    }
+
+    public int getMaxInFlight() {
+        return MaxInFlight;
+    }
+
+    public int getThrottlePause() {
+        return ThrottlePause;
+    }
+
+    public int getConnectTimeout() {
+        return ConnectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return ReadTimeout;
+    }
+
+    public int getBreakerThreshold() {
+        return BreakerThreshold;
+    }
+
+    public int getBreakerOpenTime() {
+        return BreakerOpenTime;
+    }
+
+    public int getAttachmentBudget() {
+        return AttachmentBudget;
+    }
+
+    public String getFailureSignatures() {
+        return FailureSignatures;
+    }
+
+    public FailureScanner getFailureScanner() {
+        return failureScanner;
+    }
+
+    public int getMetadataCacheTtl() {
+        return MetadataCacheTtl;
+    }
+
+    public int getMetadataCacheSize() {
+        return MetadataCacheSize;
+    }
+
+    /**
+     * @return the shared pool of Rally clients for the configured API key.
+     */
+    public RallyClientPool getRallyClientPool() {
+        return rallyClients.get(RallyAPIKey);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,262 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.Extension;
+import hudson.model.AutoCompletionCandidates;
+import hudson.model.Computer;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.Future;
+
+import com.google.inject.Inject;
+
+import jenkins.model.Jenkins;
+
+import org.jenkinsci.plugins.workflow.steps.AbstractStepDescriptorImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepImpl;
+import org.jenkinsci.plugins.workflow.steps.StepContextParameter;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+
+/**
+ * Pipeline step creating the defect for the running build, e.g.
+ * <pre>
+ * def defect = createRallyDefect project: 'Build Team', submittedBy: 'builder@example.com'
+ * </pre>
+ * The step returns the reference of the defect, or null if it was not created while the step ran:
+ * the build is part of a failure storm, Rally could not be reached, or defects are created
+ * asynchronously as configured under Manage Jenkins. The build is linked to the defect once it exists.
+ * The console log is read and Rally is called off the CPS thread, so the pipeline is suspended,
+ * not blocking an executor or the other pipelines, while the defect is created.
+ *
+ * @author Frank Rouse
+ */
+public class CreateRallyDefectStep extends AbstractStepImpl {
+
+    private final String project;
+    private final String submittedBy;
+    // Defaults are those of the post-build action's config.jelly.
+    private String priority        = "Resolve Immediately";
+    private String severity        = "Major Problem";
+    private String defectCategory  = "Automation:Jenkins";
+    private String defectType      = "Defect";
+    private String foundInVersion  = "Trunk";
+    private String whereFound      = "VCE - Automation";
+    private String whereIntroduced = "SW Design";
+    private String methodToIdentifySimilarDefects = "N/A";
+    private String titlePrefix     = "";
+    private String tags            = CreateRallyDefect.DEFAULT_TAGS;
+    private boolean updateOpenDefect;
+    private String attachments     = "";
+
+    @DataBoundConstructor
+    public CreateRallyDefectStep(String project, String submittedBy) {
+        this.project     = project;
+        this.submittedBy = submittedBy;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getSubmittedBy() {
+        return submittedBy;
+    }
+
+    public String getPriority() {
+        return priority;
+    }
+
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        this.priority = priority;
+    }
+
+    public String getSeverity() {
+        return severity;
+    }
+
+    @DataBoundSetter
+    public void setSeverity(String severity) {
+        this.severity = severity;
+    }
+
+    public String getDefectCategory() {
+        return defectCategory;
+    }
+
+    @DataBoundSetter
+    public void setDefectCategory(String defectCategory) {
+        this.defectCategory = defectCategory;
+    }
+
+    public String getDefectType() {
+        return defectType;
+    }
+
+    @DataBoundSetter
+    public void setDefectType(String defectType) {
+        this.defectType = defectType;
+    }
+
+    public String getFoundInVersion() {
+        return foundInVersion;
+    }
+
+    @DataBoundSetter
+    public void setFoundInVersion(String foundInVersion) {
+        this.foundInVersion = foundInVersion;
+    }
+
+    public String getWhereFound() {
+        return whereFound;
+    }
+
+    @DataBoundSetter
+    public void setWhereFound(String whereFound) {
+        this.whereFound = whereFound;
+    }
+
+    public String getWhereIntroduced() {
+        return whereIntroduced;
+    }
+
+    @DataBoundSetter
+    public void setWhereIntroduced(String whereIntroduced) {
+        this.whereIntroduced = whereIntroduced;
+    }
+
+    public String getMethodToIdentifySimilarDefects() {
+        return methodToIdentifySimilarDefects;
+    }
+
+    @DataBoundSetter
+    public void setMethodToIdentifySimilarDefects(String methodToIdentifySimilarDefects) {
+        this.methodToIdentifySimilarDefects = methodToIdentifySimilarDefects;
+    }
+
+    public String getTitlePrefix() {
+        return titlePrefix;
+    }
+
+    @DataBoundSetter
+    public void setTitlePrefix(String titlePrefix) {
+        this.titlePrefix = titlePrefix;
+    }
+
+    public String getTags() {
+        return tags;
+    }
+
+    @DataBoundSetter
+    public void setTags(String tags) {
+        this.tags = tags;
+    }
+
+    public boolean getUpdateOpenDefect() {
+        return updateOpenDefect;
+    }
+
+    @DataBoundSetter
+    public void setUpdateOpenDefect(boolean updateOpenDefect) {
+        this.updateOpenDefect = updateOpenDefect;
+    }
+
+    public String getAttachments() {
+        return attachments;
+    }
+
+    @DataBoundSetter
+    public void setAttachments(String attachments) {
+        this.attachments = attachments;
+    }
+
+    /**
+     * The same settings as the post-build action, which knows how to turn them into a defect.
+     */
+    CreateRallyDefect toPublisher() {
+        return new CreateRallyDefect(true, project, priority, severity, submittedBy, defectCategory, defectType,
+                foundInVersion, whereFound, whereIntroduced, methodToIdentifySimilarDefects, titlePrefix, tags,
+                updateOpenDefect, attachments);
+    }
+
+
+    public static class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        @Inject(optional = true)
+        private transient CreateRallyDefectStep step;
+        @StepContextParameter
+        private transient Run<?, ?> build;
+        @StepContextParameter
+        private transient TaskListener listener;
+
+        private transient volatile Future<?> task;
+
+        @Override
+        public boolean start() throws Exception {
+            final PrintStream logger = listener.getLogger();
+            final CreateRallyDefect publisher = step.toPublisher();
+            // A running pipeline has no result until something marks it, the step is only called on failure.
+            final Result result = build.getResult() == null ? Result.FAILURE : build.getResult();
+            task = Computer.threadPoolForRemoting.submit(new Runnable() {
+                public void run() {
+                    try {
+                        // Scanning and reading the console log can take a while, not something for the CPS thread.
+                        RallyDefectRequest request = publisher.newDefectRequest(build, result);
+                        logger.println("... Defect will be created with the title " + request.getName() + " in project " + request.getProject());
+                        RallyDefectResult created = publisher.submit(build, request, logger);
+                        getContext().onSuccess(created == null ? null : created.getDefectRef());
+                    } catch (Exception e) {
+                        getContext().onFailure(e);
+                    }
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            Future<?> running = task;
+            if (running != null)
+                running.cancel(true);
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public void onResume() {
+            // The call did not survive the restart. A defect it had handed over is still in the outbox and retried.
+            getContext().onSuccess(null);
+        }
+    }
+
+
+    @Extension(optional = true)
+    public static class DescriptorImpl extends AbstractStepDescriptorImpl {
+
+        public DescriptorImpl() {
+            super(Execution.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "createRallyDefect";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Create Rally Defect";
+        }
+
+        public AutoCompletionCandidates doAutoCompleteProject(@QueryParameter String value) throws IOException {
+            return Jenkins.getInstance().getDescriptorByType(CreateRallyDefectDescriptor.class).doAutoCompleteProject(value);
+        }
+    }
+}
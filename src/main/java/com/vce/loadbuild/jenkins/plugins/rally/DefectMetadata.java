@@ -0,0 +1,52 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Immutable snapshot of the allowed values of a set of Defect fields in one workspace.
+ * Built in a single pass by {@link RallyUtils#loadAllowedFieldValues} and shared by
+ * every drop down of the job configuration page.
+ *
+ * @author Frank Rouse
+ */
+public final class DefectMetadata {
+
+    private final String workspaceRef;
+    private final Map<String, List<String>> allowedValues;
+
+    /**
+     * @param workspaceRef - the workspace the values were read from.
+     * @param allowedValues - field name to sorted allowed values. The lists must not be modified afterwards.
+     */
+    public DefectMetadata(String workspaceRef, Map<String, List<String>> allowedValues) {
+        this.workspaceRef = workspaceRef;
+        Map<String, List<String>> copy = new HashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> entry : allowedValues.entrySet())
+            copy.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        this.allowedValues = Collections.unmodifiableMap(copy);
+    }
+
+    public String getWorkspaceRef() {
+        return workspaceRef;
+    }
+
+    /**
+     * @param field - Example "Found in Version"
+     * @return the sorted allowed values of the field, empty if the field is unknown.
+     */
+    public List<String> getAllowedValues(String field) {
+        List<String> values = allowedValues.get(field);
+        if (values == null)
+            return Collections.emptyList();
+        return values;
+    }
+
+    public Set<String> getFields() {
+        return allowedValues.keySet();
+    }
+}
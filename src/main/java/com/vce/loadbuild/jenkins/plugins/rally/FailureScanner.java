@@ -0,0 +1,262 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Classifies a failed build by the first of a list of rules whose text appears in its
+ * console log. Rules are configured one per line as
+ * <pre>
+ * pattern|signature|category|type
+ * </pre>
+ * where the category and type are optional and, when given, replace the Defect Category and
+ * Defect Type of the job. Patterns are plain text matched regardless of case, and a rule
+ * higher in the list wins over the ones below it wherever they are found in the log.
+ * <p>
+ * All patterns are compiled into one Aho-Corasick automaton, so the log is read once, in
+ * fixed size buffers, whatever the number of rules and whatever the size of the log. The
+ * automaton takes 1 KB per pattern byte, so the patterns are limited to
+ * {@link #MAX_PATTERN_BYTES} in all.
+ *
+ * @author Frank Rouse
+ */
+public final class FailureScanner {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NO_RULE = Integer.MAX_VALUE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // At most 16 MB of transitions.
+    public static final int MAX_PATTERN_BYTES = 16 * 1024;
+
+    public static final FailureScanner EMPTY = new FailureScanner(Collections.<Rule>emptyList());
+
+    private final List<Rule> rules;
+    // Transitions of the automaton, next[state << 8 | byte] with upper case ASCII folded to lower case.
+    private final int[] next;
+    // Lowest index of the rules matched when a state is reached, NO_RULE if none.
+    private final int[] firstRule;
+
+    private FailureScanner(List<Rule> rules) {
+        this.rules = Collections.unmodifiableList(new ArrayList<Rule>(rules));
+        byte[][] patterns = new byte[rules.size()][];
+        for (int i = 0; i < patterns.length; i++)
+            patterns[i] = fold(rules.get(i).getPattern().getBytes(UTF8));
+
+        // The trie of all patterns, built straight into the table, -1 where there is no edge yet.
+        int states = countStates(patterns);
+        next = new int[states << 8];
+        Arrays.fill(next, -1);
+        firstRule = new int[states];
+        Arrays.fill(firstRule, NO_RULE);
+        int added = 1;
+        for (int i = 0; i < patterns.length; i++) {
+            int state = 0;
+            for (byte b : patterns[i]) {
+                int c = b & 0xff;
+                if (next[state << 8 | c] < 0)
+                    next[state << 8 | c] = added++;
+                state = next[state << 8 | c];
+            }
+            firstRule[state] = Math.min(firstRule[state], i);
+        }
+
+        // Breadth first, completing every state's transitions with those of its failure state.
+        int[] fail = new int[states];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int c = 0; c < 256; c++) {
+            int child = next[c];
+            if (child < 0) {
+                next[c] = 0;
+            } else {
+                fail[child] = 0;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.removeFirst();
+            firstRule[state] = Math.min(firstRule[state], firstRule[fail[state]]);
+            for (int c = 0; c < 256; c++) {
+                int child = next[state << 8 | c];
+                if (child < 0) {
+                    next[state << 8 | c] = next[fail[state] << 8 | c];
+                } else {
+                    fail[child] = next[fail[state] << 8 | c];
+                    queue.add(child);
+                }
+            }
+        }
+
+        // Patterns are folded, so upper case letters take the transitions of their lower case.
+        for (int s = 0; s < states; s++)
+            for (int c = 'A'; c <= 'Z'; c++)
+                next[s << 8 | c] = next[s << 8 | fold(c)];
+    }
+
+    /**
+     * @return the number of states of the trie: the root and one per distinct prefix of the patterns.
+     */
+    private static int countStates(byte[][] patterns) {
+        byte[][] sorted = patterns.clone();
+        Arrays.sort(sorted, new Comparator<byte[]>() {
+            public int compare(byte[] a, byte[] b) {
+                for (int i = 0; i < a.length && i < b.length; i++)
+                    if (a[i] != b[i])
+                        return (a[i] & 0xff) - (b[i] & 0xff);
+                return a.length - b.length;
+            }
+        });
+        int states = 1;
+        byte[] previous = new byte[0];
+        for (byte[] pattern : sorted) {
+            int common = 0;
+            while (common < pattern.length && common < previous.length && pattern[common] == previous[common])
+                common++;
+            states += pattern.length - common;
+            previous = pattern;
+        }
+        return states;
+    }
+
+    private static int fold(int c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    private static byte[] fold(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) fold(bytes[i] & 0xff);
+        return bytes;
+    }
+
+    /**
+     * @param text - one rule per line, blank lines and lines starting with # are skipped.
+     * @throws IllegalArgumentException naming the line of a rule without pattern or signature,
+     *         or of the rule taking the patterns over {@link #MAX_PATTERN_BYTES}.
+     */
+    public static FailureScanner parse(String text) {
+        List<Rule> rules = new ArrayList<Rule>();
+        int patternBytes = 0;
+        if (text != null) {
+            String[] lines = text.split("\r?\n");
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i].trim();
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\\|", -1);
+                String pattern   = parts[0].trim();
+                String signature = parts.length > 1 ? parts[1].trim() : "";
+                if (pattern.length() == 0 || signature.length() == 0 || parts.length > 4)
+                    throw new IllegalArgumentException("Line " + (i + 1) + " is not pattern|signature|category|type: " + line);
+                patternBytes += pattern.getBytes(UTF8).length;
+                if (patternBytes > MAX_PATTERN_BYTES)
+                    throw new IllegalArgumentException("Line " + (i + 1) + " takes the patterns over "
+                            + MAX_PATTERN_BYTES + " bytes in all: " + line);
+                rules.add(new Rule(pattern, signature,
+                        parts.length > 2 ? parts[2].trim() : "",
+                        parts.length > 3 ? parts[3].trim() : ""));
+            }
+        }
+        return rules.isEmpty() ? EMPTY : new FailureScanner(rules);
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Scans the build's log, compressed or not.
+     * @return the first rule that matches, null if none does or there is no log.
+     */
+    public Rule scan(File log) throws IOException {
+        log = ConsoleLogTail.locate(log);
+        if (isEmpty() || log == null)
+            return null;
+        InputStream in = new FileInputStream(log);
+        try {
+            if (log.getName().endsWith(".gz"))
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            return scan(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the first rule that matches, null if none does.
+     */
+    public Rule scan(InputStream in) throws IOException {
+        if (isEmpty())
+            return null;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int state = 0;
+        int best = NO_RULE;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                state = next[state << 8 | (buffer[i] & 0xff)];
+                if (firstRule[state] < best) {
+                    best = firstRule[state];
+                    // Nothing can beat the first rule.
+                    if (best == 0)
+                        return rules.get(0);
+                }
+            }
+        }
+        return best == NO_RULE ? null : rules.get(best);
+    }
+
+
+    /**
+     * One configured line.
+     */
+    public static final class Rule {
+        private final String pattern;
+        private final String signature;
+        private final String category;
+        private final String type;
+
+        public Rule(String pattern, String signature, String category, String type) {
+            this.pattern   = pattern;
+            this.signature = signature;
+            this.category  = category;
+            this.type      = type;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        /**
+         * @return the Defect Category, empty to keep the job's.
+         */
+        public String getCategory() {
+            return category;
+        }
+
+        /**
+         * @return the Defect Type, empty to keep the job's.
+         */
+        public String getType() {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.codec.binary.Base64OutputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.google.gson.JsonObject;
+import com.rallydev.rest.RallyRestApi;
+import com.rallydev.rest.request.CreateRequest;
+import com.rallydev.rest.response.CreateResponse;
+
+
+/**
+ * Attaches build artifacts, e.g. test reports or crash dumps, to a defect.
+ * <p>
+ * Rally takes the content of an attachment Base64 encoded inside the JSON body, so a file is
+ * read, compressed if it is text, encoded and written to the connection in fixed size buffers.
+ * Memory use does not depend on the size of the file. Files are taken in order as long as they
+ * fit in the per defect budget, and at most a few uploads run at once across all defects so
+ * that attachments do not take every Rally connection from the lookups.
+ *
+ * @author Frank Rouse
+ */
+public class RallyAttachmentUploader {
+
+    public static final int DEFAULT_MAX_CONCURRENT_UPLOADS = 2;
+    public static final int DEFAULT_BUDGET_MB              = 20;
+
+    // Rally refuses attachments larger than this.
+    static final long MAX_ATTACHMENT_BYTES = 50L * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // Compressed before upload, they typically shrink tenfold.
+    private static final List<String> TEXT_EXTENSIONS = Arrays.asList(".xml", ".txt", ".log", ".out", ".json", ".html", ".csv");
+
+    private final ThreadPoolExecutor uploads;
+    private volatile long budgetBytes = DEFAULT_BUDGET_MB * 1024L * 1024L;
+
+    public RallyAttachmentUploader() {
+        this(DEFAULT_MAX_CONCURRENT_UPLOADS);
+    }
+
+    public RallyAttachmentUploader(int maxConcurrentUploads) {
+        uploads = new ThreadPoolExecutor(maxConcurrentUploads, maxConcurrentUploads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "Rally attachment upload"));
+        uploads.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param budgetMB - most the files of one defect may add up to before compression, 0 to attach nothing.
+     */
+    public void configure(int budgetMB) {
+        this.budgetBytes = budgetMB * 1024L * 1024L;
+    }
+
+    /**
+     * Uploads the files and waits for them. A file that cannot be attached is reported and skipped,
+     * the defect exists whatever happens to its attachments.
+     * @return number of files attached.
+     */
+    public int attach(final RallyClientPool rally, final String artifactRef, List<String> paths, PrintStream logger) {
+        long remaining = budgetBytes;
+        Map<String, Future<String>> uploading = new LinkedHashMap<String, Future<String>>();
+        for (String path : paths) {
+            final File file = new File(path);
+            long size = file.length();
+            if (!file.isFile()) {
+                logger.println("... Unable to attach " + path + ", the file no longer exists");
+            } else if (size > MAX_ATTACHMENT_BYTES || size > remaining) {
+                logger.println("... Not attaching " + file.getName() + " (" + size / 1024 + " KB), over the attachment budget of the defect");
+            } else {
+                // The size before compression holds the budget, the upload can only be smaller.
+                remaining -= size;
+                uploading.put(path, uploads.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return upload(rally, artifactRef, file);
+                    }
+                }));
+            }
+        }
+
+        int attached = 0;
+        for (Map.Entry<String, Future<String>> upload : uploading.entrySet()) {
+            try {
+                logger.println("... Attached " + upload.getValue().get());
+                attached++;
+            } catch (ExecutionException e) {
+                logger.println("... Unable to attach " + upload.getKey() + ": " + e.getCause().getLocalizedMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<String> pending : uploading.values())
+                    pending.cancel(true);
+                logger.println("... Interrupted while attaching files");
+                break;
+            }
+        }
+        return attached;
+    }
+
+    /**
+     * Stores the content, then the attachment pointing at it.
+     * @return name of the attachment.
+     */
+    String upload(RallyClientPool rally, String artifactRef, File file) throws IOException {
+        boolean compress = isText(file.getName());
+        ContentEntity content = new ContentEntity(file, compress);
+        CreateResponse contentResponse = rally.create("attachmentcontent", content);
+        if (!contentResponse.wasSuccessful())
+            throw new IOException(Arrays.toString(contentResponse.getErrors()));
+
+        String name = compress ? file.getName() + ".gz" : file.getName();
+        String contentType = compress ? "application/x-gzip" : URLConnection.guessContentTypeFromName(name);
+        JsonObject attachment = new JsonObject();
+        attachment.addProperty("Artifact",    artifactRef);
+        attachment.addProperty("Content",     contentResponse.getObject().get("_ref").getAsString());
+        attachment.addProperty("Name",        name);
+        attachment.addProperty("ContentType", contentType == null ? "application/octet-stream" : contentType);
+        attachment.addProperty("Size",        content.getSize());
+        RallyRestApi restApi = rally.borrow();
+        try {
+            CreateResponse attachmentResponse = restApi.create(new CreateRequest("attachment", attachment));
+            if (!attachmentResponse.wasSuccessful())
+                throw new IOException(Arrays.toString(attachmentResponse.getErrors()));
+            return name;
+        } finally {
+            restApi.close();
+        }
+    }
+
+    static boolean isText(String fileName) {
+        String lower = fileName.toLowerCase();
+        for (String extension : TEXT_EXTENSIONS)
+            if (lower.endsWith(extension))
+                return true;
+        return false;
+    }
+
+
+    /**
+     * The body of an AttachmentContent create, written from the file each time it is sent.
+     */
+    private static final class ContentEntity extends AbstractHttpEntity {
+        private static final byte[] PREFIX = "{\"AttachmentContent\":{\"Content\":\"".getBytes();
+        private static final byte[] SUFFIX = "\"}}".getBytes();
+
+        private final File file;
+        private final boolean compress;
+        private volatile long size;
+
+        ContentEntity(File file, boolean compress) {
+            this.file = file;
+            this.compress = compress;
+            setContentType("application/json; charset=utf-8");
+            setChunked(true);
+        }
+
+        /**
+         * @return bytes stored by Rally, known once the body has been written.
+         */
+        long getSize() {
+            return size;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return -1;
+        }
+
+        public InputStream getContent() {
+            throw new UnsupportedOperationException("The attachment content is only written, never read back.");
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(PREFIX);
+            // Closing the encoder writes its padding but must leave the connection open.
+            CountingOutputStream counted = new CountingOutputStream(new Base64OutputStream(new KeepOpenOutputStream(out), true, 0, new byte[0]));
+            OutputStream sink = compress ? new GZIPOutputStream(counted, BUFFER_SIZE) : counted;
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    sink.write(buffer, 0, n);
+            } finally {
+                in.close();
+            }
+            sink.close();
+            size = counted.count;
+            out.write(SUFFIX);
+            out.flush();
+        }
+    }
+
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+
+    private static final class KeepOpenOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        KeepOpenOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+}
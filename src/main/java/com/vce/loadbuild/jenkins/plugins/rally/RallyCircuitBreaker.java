@@ -0,0 +1,135 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Stops calling Rally once it keeps failing, so that an outage costs each build and each
+ * configuration page one quick exception instead of a connect timeout per request.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens and every request fails
+ * at once with {@link OpenException}: the drop down lists are served from the caches and defects
+ * wait in the outbox. Once {@code openSeconds} have passed a single trial request is let through,
+ * closing the breaker if it succeeds and opening it again if it does not.
+ * <p>
+ * Only requests that got no answer count as failures. A 429 or a request Rally refused with
+ * errors means Rally is up.
+ *
+ * @author Frank Rouse
+ */
+public class RallyCircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyCircuitBreaker.class.getName());
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final int DEFAULT_OPEN_SECONDS      = 30;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long openMillis = TimeUnit.SECONDS.toMillis(DEFAULT_OPEN_SECONDS);
+
+    private final Clock clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    public RallyCircuitBreaker() {
+        this(Clock.SYSTEM);
+    }
+
+    RallyCircuitBreaker(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * @param failureThreshold - consecutive failures that open the breaker, 0 to never open it.
+     */
+    public synchronized void configure(int failureThreshold, int openSeconds) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = TimeUnit.SECONDS.toMillis(openSeconds);
+        if (failureThreshold <= 0)
+            close();
+    }
+
+    /**
+     * Asks for a request to be let through, to be followed by {@link #succeeded()}, {@link #failed(IOException)}
+     * or {@link #abandoned()}.
+     * @throws OpenException if Rally is considered down.
+     */
+    public synchronized void before() throws OpenException {
+        if (state == State.OPEN) {
+            long now = now();
+            if (now - openedAt < openMillis)
+                throw new OpenException(openedAt + openMillis - now);
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight)
+                throw new OpenException(0);
+            trialInFlight = true;
+        }
+    }
+
+    public synchronized void succeeded() {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "Rally answers again, requests are sent normally");
+            close();
+        }
+    }
+
+    public synchronized void failed(IOException e) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            LOGGER.log(Level.WARNING, "Rally failed " + consecutiveFailures + " times in a row, failing requests for "
+                    + TimeUnit.MILLISECONDS.toSeconds(openMillis) + " seconds: " + e.getMessage());
+            state = State.OPEN;
+            openedAt = now();
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * The request let through was never sent, e.g. it timed out waiting for its turn.
+     */
+    public synchronized void abandoned() {
+        // Only the trial gets through while half open.
+        if (state == State.HALF_OPEN)
+            trialInFlight = false;
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInFlight = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+
+    /**
+     * Thrown instead of calling Rally while the breaker is open. Callers treat it like any
+     * other failure to reach Rally.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(long retryInMillis) {
+            super("Rally is not answering, requests are suspended"
+                    + (retryInMillis > 0 ? " for another " + TimeUnit.MILLISECONDS.toSeconds(retryInMillis) + " seconds" : " until a trial request succeeds"));
+        }
+    }
+}
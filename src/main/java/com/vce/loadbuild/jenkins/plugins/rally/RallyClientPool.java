@@ -0,0 +1,347 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import com.rallydev.rest.RallyRestApi;
+import com.rallydev.rest.request.CreateRequest;
+import com.rallydev.rest.request.GetRequest;
+import com.rallydev.rest.request.QueryRequest;
+import com.rallydev.rest.request.UpdateRequest;
+import com.rallydev.rest.response.CreateResponse;
+import com.rallydev.rest.response.GetResponse;
+import com.rallydev.rest.response.QueryResponse;
+import com.rallydev.rest.response.Response;
+import com.rallydev.rest.response.UpdateResponse;
+
+
+/**
+ * Bounded pool of Rally clients that share a single API key.
+ * <p>
+ * Every client keeps its HTTP connection alive between requests so repeated
+ * queries do not pay for a new TLS handshake. A client is taken with
+ * {@link #borrow()} and handed back by calling {@link RallyRestApi#close()}
+ * on it from the same thread, exactly as the code did when each call built its own client.
+ * <p>
+ * Every request also waits for its turn from the {@link RallyRateLimiter}, which may be shared
+ * with other pools. A request Rally throttled with 429 is sent again once the pause is over.
+ * While the {@link RallyCircuitBreaker} is open requests fail at once instead of timing out.
+ *
+ * @author Frank Rouse
+ */
+public class RallyClientPool {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyClientPool.class.getName());
+
+    public static final int  DEFAULT_MAX_CONNECTIONS = 8;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final int  DEFAULT_CONNECT_TIMEOUT = 10;
+    public static final int  DEFAULT_READ_TIMEOUT    = 60;
+
+    // How long a caller waits for a free connection before giving up.
+    private static final long BORROW_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final String APPLICATION_NAME = "Jenkins Rally Defect Creation";
+
+    // Header the Rally client authenticates every request with.
+    private static final String API_KEY_HEADER = "zsessionid";
+
+    // Times a throttled request is sent again before the caller sees the failure.
+    private static final int MAX_THROTTLED_RETRIES = 2;
+
+    private final URI server;
+    private final String apiKey;
+    private final long keepAliveMillis;
+    private final Semaphore permits;
+    private final RallyRateLimiter limiter;
+    private final RallyCircuitBreaker breaker;
+    private volatile int connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(DEFAULT_CONNECT_TIMEOUT);
+    private volatile int readTimeoutMillis    = (int) TimeUnit.SECONDS.toMillis(DEFAULT_READ_TIMEOUT);
+    // Most recently used clients sit at the head so warm connections are reused first.
+    private final LinkedBlockingDeque<PooledRallyRestApi> idle = new LinkedBlockingDeque<PooledRallyRestApi>();
+    private volatile boolean closed = false;
+
+    public RallyClientPool(URI server, String apiKey) {
+        this(server, apiKey, new RallyRateLimiter(), new RallyCircuitBreaker());
+    }
+
+    public RallyClientPool(URI server, String apiKey, RallyRateLimiter limiter, RallyCircuitBreaker breaker) {
+        this(server, apiKey, DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_MILLIS, limiter, breaker);
+    }
+
+    public RallyClientPool(URI server, String apiKey, int maxConnections, long keepAliveMillis,
+                           RallyRateLimiter limiter, RallyCircuitBreaker breaker) {
+        this.server          = server;
+        this.apiKey          = apiKey;
+        this.keepAliveMillis = keepAliveMillis;
+        this.permits         = new Semaphore(maxConnections, true);
+        this.limiter         = limiter;
+        this.breaker         = breaker;
+    }
+
+    /**
+     * Applies to every request sent from now on, including those on clients already in the pool.
+     * @param connectTimeout - seconds to wait for a connection to Rally.
+     * @param readTimeout - seconds to wait for Rally to send anything.
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(connectTimeout);
+        this.readTimeoutMillis    = (int) TimeUnit.SECONDS.toMillis(readTimeout);
+    }
+
+    public URI getServer() {
+        return server;
+    }
+
+    /**
+     * @return a client for exclusive use by the caller. Calling close() on it returns it to the pool.
+     * @throws IOException if the pool has been closed or no connection became free in time.
+     */
+    public RallyRestApi borrow() throws IOException {
+        if (closed)
+            throw new IOException("The Rally client pool has been closed.");
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                throw new IOException("Timed out waiting for a free Rally connection.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free Rally connection.");
+        }
+        try {
+            long now = System.currentTimeMillis();
+            PooledRallyRestApi restApi;
+            // Drop any clients whose connection has been idle longer than the keep alive.
+            while ((restApi = idle.pollFirst()) != null && now - restApi.lastUsed > keepAliveMillis)
+                restApi.dispose();
+            if (restApi == null)
+                restApi = new PooledRallyRestApi();
+            restApi.applyTimeouts();
+            restApi.lend();
+            return restApi;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an object of the given type from a JSON body that the entity writes straight to
+     * the connection, for bodies too large to be built as a String the way {@link CreateRequest} does.
+     */
+    public CreateResponse create(String type, HttpEntity body) throws IOException {
+        PooledRallyRestApi restApi = (PooledRallyRestApi) borrow();
+        try {
+            return restApi.create(type, body);
+        } finally {
+            restApi.close();
+        }
+    }
+
+    private void release(PooledRallyRestApi restApi) {
+        restApi.lastUsed = System.currentTimeMillis();
+        if (closed)
+            restApi.dispose();
+        else
+            idle.offerFirst(restApi);
+        permits.release();
+    }
+
+    /**
+     * Closes all idle clients. Clients that are still borrowed are closed when they are handed back.
+     */
+    public void close() {
+        closed = true;
+        PooledRallyRestApi restApi;
+        while ((restApi = idle.pollFirst()) != null)
+            restApi.dispose();
+    }
+
+
+    /**
+     * @return seconds asked for by a Retry-After header, -1 if there is none or it is a date.
+     */
+    static long retryAfterSeconds(Header retryAfter) {
+        if (retryAfter == null)
+            return -1;
+        try {
+            return Long.parseLong(retryAfter.getValue().trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * One request to Rally, sent again if Rally throttled it.
+     */
+    private interface Call<T extends Response> {
+        T send() throws IOException;
+    }
+
+
+    private class PooledRallyRestApi extends RallyRestApi {
+        // The thread the client is lent to, null while it is in the pool.
+        private Thread leasedTo;
+        private volatile long lastUsed = System.currentTimeMillis();
+        // Set when the last response was a 429, the client is only used by one thread at a time.
+        private volatile boolean throttled = false;
+
+        PooledRallyRestApi() {
+            super(server, apiKey);
+            setApplicationName(APPLICATION_NAME);
+            getClient().addResponseInterceptor(new HttpResponseInterceptor() {
+                public void process(HttpResponse response, HttpContext context) {
+                    if (response.getStatusLine().getStatusCode() == 429) {
+                        long retryAfter = retryAfterSeconds(response.getFirstHeader("Retry-After"));
+                        LOGGER.log(Level.WARNING, "Rally is throttling requests, holding them back for {0} seconds",
+                                retryAfter >= 0 ? retryAfter : "the configured");
+                        throttled = true;
+                        limiter.throttled(retryAfter);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Takes the timeouts currently configured on the pool, which may have changed since the client was made.
+         */
+        void applyTimeouts() {
+            // The defaults wait for ever on a Rally that accepts connections but does not answer.
+            HttpConnectionParams.setConnectionTimeout(getClient().getParams(), connectTimeoutMillis);
+            HttpConnectionParams.setSoTimeout(getClient().getParams(), readTimeoutMillis);
+        }
+
+        synchronized void lend() {
+            leasedTo = Thread.currentThread();
+        }
+
+        /**
+         * Hands the client back to the pool instead of closing the connection. Only the thread
+         * that borrowed the client hands it back, once: closing it again does nothing, even after
+         * another thread has borrowed it since.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (leasedTo != Thread.currentThread())
+                    return;
+                leasedTo = null;
+            }
+            release(this);
+        }
+
+        // Every request to Rally passes through here, which makes it the place to limit and time them.
+
+        private <T extends Response> T send(String operation, boolean write, Call<T> call) throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                breaker.before();
+                try {
+                    limiter.acquire(write, BORROW_TIMEOUT_MILLIS);
+                } catch (IOException e) {
+                    breaker.abandoned();
+                    throw e;
+                }
+                long start = System.nanoTime();
+                boolean successful = false;
+                throttled = false;
+                try {
+                    T response = call.send();
+                    // Even a refusal is an answer.
+                    breaker.succeeded();
+                    successful = response.wasSuccessful();
+                    return response;
+                } catch (IOException e) {
+                    if (!throttled) {
+                        breaker.failed(e);
+                        throw e;
+                    }
+                    // Rally is up but did not process a throttled request, the next turn comes after the pause.
+                    breaker.succeeded();
+                    if (attempt >= MAX_THROTTLED_RETRIES)
+                        throw e;
+                } catch (RuntimeException e) {
+                    breaker.abandoned();
+                    throw e;
+                } finally {
+                    limiter.release();
+                    RallyMetrics.get().record(operation, System.nanoTime() - start, successful);
+                }
+            }
+        }
+
+        @Override
+        public QueryResponse query(final QueryRequest request) throws IOException {
+            return send("query", false, new Call<QueryResponse>() {
+                public QueryResponse send() throws IOException {
+                    return PooledRallyRestApi.super.query(request);
+                }
+            });
+        }
+
+        @Override
+        public GetResponse get(final GetRequest request) throws IOException {
+            return send("get", false, new Call<GetResponse>() {
+                public GetResponse send() throws IOException {
+                    return PooledRallyRestApi.super.get(request);
+                }
+            });
+        }
+
+        @Override
+        public CreateResponse create(final CreateRequest request) throws IOException {
+            return send("create", true, new Call<CreateResponse>() {
+                public CreateResponse send() throws IOException {
+                    return PooledRallyRestApi.super.create(request);
+                }
+            });
+        }
+
+        @Override
+        public UpdateResponse update(final UpdateRequest request) throws IOException {
+            return send("update", true, new Call<UpdateResponse>() {
+                public UpdateResponse send() throws IOException {
+                    return PooledRallyRestApi.super.update(request);
+                }
+            });
+        }
+
+        CreateResponse create(final String type, final HttpEntity body) throws IOException {
+            return send("create", true, new Call<CreateResponse>() {
+                public CreateResponse send() throws IOException {
+                    HttpPost post = new HttpPost(getClient().getWsapiUrl() + "/" + type + "/create");
+                    post.setHeader(API_KEY_HEADER, apiKey);
+                    post.setEntity(body);
+                    HttpResponse response = getClient().execute(post);
+                    String json = EntityUtils.toString(response.getEntity(), "utf-8");
+                    if (response.getStatusLine().getStatusCode() != 200)
+                        throw new IOException("Rally answered " + response.getStatusLine().getStatusCode() + " "
+                                + response.getStatusLine().getReasonPhrase() + " creating a " + type);
+                    return new CreateResponse(json);
+                }
+            });
+        }
+
+        void dispose() {
+            try {
+                super.close();
+            } catch (IOException e) {
+                // Nothing useful can be done if the connection does not close cleanly.
+            }
+        }
+    }
+}
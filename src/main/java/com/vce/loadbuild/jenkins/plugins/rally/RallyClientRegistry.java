@@ -0,0 +1,77 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Holds one {@link RallyClientPool} per Rally API key so that builds and form
+ * requests using the same key share their connections. All the pools share one
+ * {@link RallyRateLimiter}, Rally throttles the controller, not the key, and one
+ * {@link RallyCircuitBreaker}, an outage affects every key alike.
+ *
+ * @author Frank Rouse
+ */
+public class RallyClientRegistry {
+
+    private final URI server;
+    private final RallyRateLimiter limiter;
+    private final RallyCircuitBreaker breaker;
+    private volatile int connectTimeout = RallyClientPool.DEFAULT_CONNECT_TIMEOUT;
+    private volatile int readTimeout    = RallyClientPool.DEFAULT_READ_TIMEOUT;
+    private final ConcurrentMap<String, RallyClientPool> pools = new ConcurrentHashMap<String, RallyClientPool>();
+
+    public RallyClientRegistry(URI server) {
+        this(server, new RallyRateLimiter(), new RallyCircuitBreaker());
+    }
+
+    public RallyClientRegistry(URI server, RallyRateLimiter limiter, RallyCircuitBreaker breaker) {
+        this.server  = server;
+        this.limiter = limiter;
+        this.breaker = breaker;
+    }
+
+    /**
+     * @see RallyClientPool#setTimeouts(int, int)
+     */
+    public void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout    = readTimeout;
+        for (RallyClientPool pool : pools.values())
+            pool.setTimeouts(connectTimeout, readTimeout);
+    }
+
+    public URI getServer() {
+        return server;
+    }
+
+    public RallyClientPool get(String apiKey) {
+        // ConcurrentHashMap does not allow null keys and an unset key is still a valid (if useless) request.
+        String key = apiKey == null ? "" : apiKey;
+        RallyClientPool pool = pools.get(key);
+        if (pool == null) {
+            // A pool holds no connections until it is used so losing the race costs nothing.
+            RallyClientPool newPool = new RallyClientPool(server, apiKey, limiter, breaker);
+            newPool.setTimeouts(connectTimeout, readTimeout);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null)
+                pool = newPool;
+        }
+        return pool;
+    }
+
+    /**
+     * Closes and forgets the pool of the given key, e.g. when the key is replaced in the global configuration.
+     */
+    public void evict(String apiKey) {
+        RallyClientPool pool = pools.remove(apiKey == null ? "" : apiKey);
+        if (pool != null)
+            pool.close();
+    }
+
+    public void close() {
+        for (String key : pools.keySet())
+            evict(key);
+    }
+}
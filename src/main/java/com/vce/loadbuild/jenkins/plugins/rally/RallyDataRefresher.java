@@ -0,0 +1,39 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+
+/**
+ * Keeps the Rally data used by the configuration pages and builds fresh, so that they
+ * read it from memory instead of waiting for Rally.
+ *
+ * @author Frank Rouse
+ */
+@Extension
+public class RallyDataRefresher extends AsyncPeriodicWork {
+
+    public RallyDataRefresher() {
+        super("Rally data refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(15);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null)
+            return;
+        CreateRallyDefectDescriptor descriptor = jenkins.getDescriptorByType(CreateRallyDefectDescriptor.class);
+        if (descriptor != null)
+            descriptor.refreshRallyData();
+    }
+}
@@ -0,0 +1,92 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.model.Jenkins;
+
+
+/**
+ * Links a build to the Rally defect created for it, and shows on the build page how long
+ * each step of creating the defect took.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectAction implements Action {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyDefectAction.class.getName());
+
+    private final String defectRef;
+    private final String defectUrl;
+    private final Map<String, Long> timings;
+
+    public RallyDefectAction(RallyDefectResult result) {
+        this.defectRef = result.getDefectRef();
+        this.defectUrl = result.getDefectUrl();
+        this.timings   = new LinkedHashMap<String, Long>(result.getTimings());
+    }
+
+    public String getDefectRef() {
+        return defectRef;
+    }
+
+    public String getDefectUrl() {
+        return defectUrl;
+    }
+
+    /**
+     * @return milliseconds taken by each step, see summary.jelly.
+     */
+    public Map<String, Long> getTimings() {
+        // Links saved before timings were recorded have none.
+        return timings == null ? Collections.<String, Long>emptyMap() : Collections.unmodifiableMap(timings);
+    }
+
+    public String getIconFileName() {
+        return "document.png";
+    }
+
+    public String getDisplayName() {
+        return "Rally Defect";
+    }
+
+    public String getUrlName() {
+        // An absolute URL takes the side panel link straight to Rally.
+        return defectUrl;
+    }
+
+    /**
+     * @param buildId - as given by {@link RallyDefectRequest#getBuildId()}.
+     */
+    public static void addTo(String buildId, RallyDefectAction action) {
+        int hash = buildId.lastIndexOf('#');
+        addTo(buildId.substring(0, hash), Integer.parseInt(buildId.substring(hash + 1)), action);
+    }
+
+    /**
+     * Adds the action to a build that may already have finished, e.g. once a queued defect has been created.
+     */
+    public static void addTo(String jobFullName, int buildNumber, RallyDefectAction action) {
+        Jenkins jenkins = Jenkins.getInstance();
+        Job<?, ?> job = jenkins == null ? null : jenkins.getItemByFullName(jobFullName, Job.class);
+        Run<?, ?> build = job == null ? null : job.getBuildByNumber(buildNumber);
+        if (build == null) {
+            LOGGER.log(Level.INFO, "Build {0} #{1} no longer exists, defect {2} not linked.", new Object[] {jobFullName, buildNumber, action.getDefectUrl()});
+            return;
+        }
+        build.addAction(action);
+        try {
+            build.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the Rally defect link of " + build, e);
+        }
+    }
+}
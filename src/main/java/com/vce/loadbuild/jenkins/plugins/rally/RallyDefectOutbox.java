@@ -0,0 +1,184 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Defects that have not been created in Rally yet, one XML file per build so that
+ * nothing is lost when Rally is down or the controller restarts.
+ * <p>
+ * A failed attempt is retried with exponential backoff and jitter, see {@link #failed}.
+ * There is never more than one pending defect per build.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyDefectOutbox.class.getName());
+
+    private static final long FIRST_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_RETRY_MILLIS   = TimeUnit.HOURS.toMillis(1);
+    // With the delays above this keeps retrying for roughly two days.
+    private static final int  MAX_ATTEMPTS       = 50;
+
+    private final File directory;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    // Build ids of the entries a worker is currently creating.
+    private final ConcurrentMap<String, Boolean> claimed = new ConcurrentHashMap<String, Boolean>();
+    private final Random random = new Random();
+
+    public RallyDefectOutbox(File directory) {
+        this.directory = directory;
+        load();
+    }
+
+    private void load() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            if (!file.getName().endsWith(".xml"))
+                continue;
+            try {
+                Entry entry = (Entry) new XmlFile(file).read();
+                entries.put(entry.request.getBuildId(), entry);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to read the pending Rally defect " + file, e);
+            } catch (ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Ignoring unexpected file " + file + " in the Rally defect outbox", e);
+            }
+        }
+        if (!entries.isEmpty())
+            LOGGER.log(Level.INFO, "{0} Rally defects are waiting to be created", entries.size());
+    }
+
+    /**
+     * Records the defect before any attempt is made to create it.
+     * @return false if a defect for the same build is already pending.
+     */
+    public boolean add(RallyDefectRequest request) throws IOException {
+        Entry entry = new Entry(request);
+        if (entries.putIfAbsent(request.getBuildId(), entry) != null)
+            return false;
+        save(entry);
+        return true;
+    }
+
+    /**
+     * @return the pending entry of the build, or null if it is already being created or does not exist.
+     */
+    public Entry claim(String buildId) {
+        Entry entry = entries.get(buildId);
+        if (entry == null || claimed.putIfAbsent(buildId, Boolean.TRUE) != null)
+            return null;
+        return entry;
+    }
+
+    /**
+     * Forgets the entry once its defect has been created, or refused for good by Rally.
+     */
+    public void remove(Entry entry) {
+        String buildId = entry.request.getBuildId();
+        entries.remove(buildId);
+        if (!file(buildId).delete() && file(buildId).exists())
+            LOGGER.log(Level.WARNING, "Unable to delete {0}", file(buildId));
+        claimed.remove(buildId);
+    }
+
+    /**
+     * Schedules the next attempt of a claimed entry, or gives up once it has been tried too often.
+     */
+    public void failed(Entry entry, String error) {
+        entry.attempts++;
+        entry.lastError = error;
+        if (entry.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.SEVERE, "Giving up on the Rally defect for {0} after {1} attempts: {2}",
+                    new Object[] {entry.request.getBuildId(), entry.attempts, error});
+            remove(entry);
+            return;
+        }
+        long delay = Math.min(MAX_RETRY_MILLIS, FIRST_RETRY_MILLIS << Math.min(entry.attempts - 1, 20));
+        // Half of the delay is random so that defects held back by the same outage do not all retry at once.
+        long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * delay / 2);
+        }
+        entry.nextAttempt = System.currentTimeMillis() + delay / 2 + jitter;
+        try {
+            save(entry);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the pending Rally defect for " + entry.request.getBuildId(), e);
+        }
+        claimed.remove(entry.request.getBuildId());
+    }
+
+    /**
+     * @return build ids of the entries whose next attempt is due and that nobody is working on.
+     */
+    public List<String> due() {
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<String>();
+        for (Entry entry : entries.values())
+            if (entry.nextAttempt <= now && !claimed.containsKey(entry.request.getBuildId()))
+                due.add(entry.request.getBuildId());
+        return due;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void save(Entry entry) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+        new XmlFile(file(entry.request.getBuildId())).write(entry);
+    }
+
+    private File file(String buildId) {
+        try {
+            return new File(directory, URLEncoder.encode(buildId, "UTF-8") + ".xml");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    /**
+     * A pending defect together with its retry state.
+     */
+    public static final class Entry {
+        private final RallyDefectRequest request;
+        private int attempts = 0;
+        private long nextAttempt = 0;
+        private String lastError;
+
+        Entry(RallyDefectRequest request) {
+            this.request = request;
+        }
+
+        public RallyDefectRequest getRequest() {
+            return request;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+import jenkins.model.Jenkins;
+
+
+/**
+ * Retries the defects in the {@link RallyDefectOutbox} whose next attempt is due.
+ *
+ * @author Frank Rouse
+ */
+@Extension
+public class RallyDefectOutboxDrainer extends AsyncPeriodicWork {
+
+    public RallyDefectOutboxDrainer() {
+        super("Rally defect outbox");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(30);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null)
+            return;
+        CreateRallyDefectDescriptor descriptor = jenkins.getDescriptorByType(CreateRallyDefectDescriptor.class);
+        if (descriptor != null)
+            descriptor.getDefectQueue().retryDue();
+    }
+}
@@ -0,0 +1,155 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Creates defects on a small pool of controller side workers so that a failed build
+ * does not hold its executor while Rally is being called. Once a defect exists a
+ * {@link RallyDefectAction} linking to it is added to the build.
+ * <p>
+ * The queue is bounded. When it is full the defect is created on the calling thread,
+ * which slows that build down rather than losing the defect.
+ * <p>
+ * Every defect is written to the {@link RallyDefectOutbox} before Rally is called and
+ * only removed once Rally has answered, so defects that could not be created are
+ * retried by {@link #retryDue()} and survive a restart. A defect Rally refused, or
+ * whose project or user it does not know, is not retried.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyDefectQueue.class.getName());
+
+    public static final int DEFAULT_WORKERS  = 4;
+    public static final int DEFAULT_CAPACITY = 500;
+
+    private final RallyDefectSubmitter submitter;
+    private final RallyDefectOutbox outbox;
+    private final ThreadPoolExecutor workers;
+
+    public RallyDefectQueue(RallyDefectSubmitter submitter, RallyDefectOutbox outbox) {
+        this(submitter, outbox, DEFAULT_WORKERS, DEFAULT_CAPACITY);
+    }
+
+    public RallyDefectQueue(RallyDefectSubmitter submitter, RallyDefectOutbox outbox, int workerCount, int capacity) {
+        this.submitter = submitter;
+        this.outbox = outbox;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Rally defect creation"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the defect for creation and returns straight away unless the queue is full.
+     * @return false if a defect for the same build is already pending.
+     */
+    public boolean enqueue(RallyDefectRequest request) throws IOException {
+        if (!outbox.add(request))
+            return false;
+        execute(request.getBuildId());
+        return true;
+    }
+
+    /**
+     * Creates the defect on the calling thread, leaving it to the retries if Rally cannot be reached.
+     * @return the outcome, or null if the defect was put aside for a later attempt.
+     */
+    public RallyDefectResult createNow(RallyDefectRequest request, PrintStream logger) throws IOException {
+        if (!outbox.add(request)) {
+            logger.println("... A defect for this build is already waiting to be created.");
+            return null;
+        }
+        RallyDefectOutbox.Entry entry = outbox.claim(request.getBuildId());
+        if (entry == null)
+            return null;
+        try {
+            RallyDefectResult result = submitter.submit(request, logger);
+            outbox.remove(entry);
+            return result;
+        } catch (IOException e) {
+            outbox.failed(entry, e.getLocalizedMessage());
+            logger.println("... " + e.getLocalizedMessage());
+            logger.println("... The defect will be created in the background once Rally can be reached.");
+            return null;
+        } catch (RuntimeException e) {
+            outbox.failed(entry, e.toString());
+            throw e;
+        }
+    }
+
+    /**
+     * Hands the pending defects whose next attempt is due to the workers.
+     */
+    public void retryDue() {
+        for (String buildId : outbox.due())
+            execute(buildId);
+    }
+
+    private void execute(final String buildId) {
+        workers.execute(new Runnable() {
+            public void run() {
+                RallyDefectOutbox.Entry entry = outbox.claim(buildId);
+                if (entry != null)
+                    createDefect(entry);
+            }
+        });
+    }
+
+    void createDefect(RallyDefectOutbox.Entry entry) {
+        RallyDefectRequest request = entry.getRequest();
+        // The build console is closed by now so the progress lines go to the Jenkins log instead.
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        PrintStream logger = new PrintStream(log, true);
+        try {
+            RallyDefectResult result = submitter.submit(request, logger);
+            // Rally answered, trying again would not change its mind.
+            outbox.remove(entry);
+            if (result.isCreated()) {
+                for (String buildId : request.getLinkedBuildIds())
+                    RallyDefectAction.addTo(buildId, new RallyDefectAction(result));
+                LOGGER.log(Level.FINE, "Rally defect for {0}:\n{1}", new Object[] {request.getBuildId(), log});
+            } else {
+                LOGGER.log(Level.WARNING, "No Rally defect for {0}, {1}:\n{2}", new Object[] {request.getBuildId(), result.getErrors(), log});
+            }
+        } catch (IOException e) {
+            outbox.failed(entry, e.getLocalizedMessage());
+            LOGGER.log(Level.WARNING, "Unable to create the Rally defect for " + request.getBuildId()
+                    + " (attempt " + entry.getAttempts() + "):\n" + log, e);
+        } catch (RuntimeException e) {
+            outbox.failed(entry, e.toString());
+            LOGGER.log(Level.WARNING, "Unable to create the Rally defect for " + request.getBuildId() + ":\n" + log, e);
+        }
+    }
+
+    /**
+     * @return number of defects waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return workers.getQueue().size();
+    }
+
+    /**
+     * @return number of defects not created yet, including those waiting for a retry.
+     */
+    public int getPendingCount() {
+        return outbox.size();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,143 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Everything needed to create the defect of one failed build, captured while the build is
+ * still running so that the defect itself can be created later on another thread.
+ * <p>
+ * Names (project, user, tags) are kept as configured and only resolved to Rally references
+ * when the defect is created.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectRequest {
+
+    private final String jobFullName;
+    private final int buildNumber;
+    private final String name;
+    private final String description;
+    private final String project;
+    private final String submittedBy;
+    private final List<String> tags;
+    // Defect attributes written as given, e.g. "Priority" or "c_DefectCategory".
+    private final Map<String, String> attributes;
+    // Key into RallyOpenDefects, null when every failure gets a defect of its own.
+    private final String openDefectKey;
+    // Builds that get the link to the defect, e.g. all the builds of a failure storm. Empty for just this build.
+    private final List<String> linkedBuildIds;
+    // Last lines of the console log, read while the build still has its log open. Null if not wanted.
+    private String logTail;
+    // Absolute paths of the build artifacts attached to the defect. Null for none.
+    private List<String> attachments;
+
+    public RallyDefectRequest(String jobFullName, int buildNumber, String name, String description,
+                              String project, String submittedBy, List<String> tags, Map<String, String> attributes) {
+        this(jobFullName, buildNumber, name, description, project, submittedBy, tags, attributes, null);
+    }
+
+    public RallyDefectRequest(String jobFullName, int buildNumber, String name, String description,
+                              String project, String submittedBy, List<String> tags, Map<String, String> attributes,
+                              String openDefectKey) {
+        this(jobFullName, buildNumber, name, description, project, submittedBy, tags, attributes, openDefectKey,
+                Collections.<String>emptyList());
+    }
+
+    public RallyDefectRequest(String jobFullName, int buildNumber, String name, String description,
+                              String project, String submittedBy, List<String> tags, Map<String, String> attributes,
+                              String openDefectKey, List<String> linkedBuildIds) {
+        this.jobFullName = jobFullName;
+        this.buildNumber = buildNumber;
+        this.name        = name;
+        this.description = description;
+        this.project     = project;
+        this.submittedBy = submittedBy;
+        this.tags        = new ArrayList<String>(tags);
+        this.attributes  = new LinkedHashMap<String, String>(attributes);
+        this.openDefectKey = openDefectKey;
+        this.linkedBuildIds = new ArrayList<String>(linkedBuildIds);
+    }
+
+    public String getJobFullName() {
+        return jobFullName;
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    /**
+     * @return identifies the build the defect is for, e.g. "folder/job#42".
+     */
+    public String getBuildId() {
+        return jobFullName + "#" + buildNumber;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getProject() {
+        return project;
+    }
+
+    public String getSubmittedBy() {
+        return submittedBy;
+    }
+
+    public List<String> getTags() {
+        return Collections.unmodifiableList(tags);
+    }
+
+    public Map<String, String> getAttributes() {
+        return Collections.unmodifiableMap(attributes);
+    }
+
+    /**
+     * @return key of the open defect a repeated failure is added to, null to always create a new defect.
+     */
+    public String getOpenDefectKey() {
+        return openDefectKey;
+    }
+
+    /**
+     * @return the last lines of the console log, shown on the defect, or null.
+     */
+    public String getLogTail() {
+        return logTail;
+    }
+
+    public void setLogTail(String logTail) {
+        this.logTail = logTail;
+    }
+
+    /**
+     * @return paths of the files to attach to the defect, in order of importance.
+     */
+    public List<String> getAttachments() {
+        return attachments == null ? Collections.<String>emptyList() : Collections.unmodifiableList(attachments);
+    }
+
+    public void setAttachments(List<String> attachments) {
+        this.attachments = new ArrayList<String>(attachments);
+    }
+
+    /**
+     * @return ids of the builds to link to the defect once it exists.
+     */
+    public List<String> getLinkedBuildIds() {
+        // Requests saved before builds could be linked have no list.
+        if (linkedBuildIds == null || linkedBuildIds.isEmpty())
+            return Collections.singletonList(getBuildId());
+        return Collections.unmodifiableList(linkedBuildIds);
+    }
+}
@@ -0,0 +1,64 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Outcome of a defect creation: either the new defect or the errors Rally gave for refusing it,
+ * which include a project or user that could not be found.
+ *
+ * @author Frank Rouse
+ */
+public final class RallyDefectResult {
+
+    private final String defectRef;
+    private final String defectUrl;
+    private final List<String> errors;
+    // Milliseconds taken by each step, in the order they were taken.
+    private final Map<String, Long> timings;
+
+    private RallyDefectResult(String defectRef, String defectUrl, List<String> errors, Map<String, Long> timings) {
+        this.defectRef = defectRef;
+        this.defectUrl = defectUrl;
+        this.errors    = errors;
+        this.timings   = Collections.unmodifiableMap(new LinkedHashMap<String, Long>(timings));
+    }
+
+    public static RallyDefectResult created(String defectRef, String defectUrl, Map<String, Long> timings) {
+        return new RallyDefectResult(defectRef, defectUrl, Collections.<String>emptyList(), timings);
+    }
+
+    public static RallyDefectResult rejected(String[] errors, Map<String, Long> timings) {
+        return new RallyDefectResult(null, null, Collections.unmodifiableList(Arrays.asList(errors)), timings);
+    }
+
+    public boolean isCreated() {
+        return defectRef != null;
+    }
+
+    public String getDefectRef() {
+        return defectRef;
+    }
+
+    /**
+     * @return link to the defect in the Rally web application.
+     */
+    public String getDefectUrl() {
+        return defectUrl;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return milliseconds taken by each step, e.g. "Project" or "Create".
+     */
+    public Map<String, Long> getTimings() {
+        return timings;
+    }
+}
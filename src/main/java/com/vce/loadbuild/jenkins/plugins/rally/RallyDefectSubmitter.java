@@ -0,0 +1,268 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.rallydev.rest.RallyRestApi;
+import com.rallydev.rest.request.CreateRequest;
+import com.rallydev.rest.request.GetRequest;
+import com.rallydev.rest.response.CreateResponse;
+import com.rallydev.rest.response.GetResponse;
+import com.rallydev.rest.util.Fetch;
+
+
+/**
+ * Creates the Rally defect described by a {@link RallyDefectRequest}. Used by the publisher
+ * directly and by the background workers of {@link RallyDefectQueue}.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectSubmitter {
+
+    // Locks the submissions of one open defect key hash to.
+    private static final int KEY_LOCKS = 64;
+
+    private final RallyReferenceResolver resolver;
+    private final RallyOpenDefects openDefects;
+    private final RallyAttachmentUploader attachmentUploader;
+    private final Object[] keyLocks = new Object[KEY_LOCKS];
+
+    public RallyDefectSubmitter(RallyReferenceResolver resolver) {
+        this(resolver, null, null);
+    }
+
+    /**
+     * @param openDefects - defects that repeated failures are added to, see {@link RallyDefectRequest#getOpenDefectKey()}.
+     * @param attachmentUploader - uploads {@link RallyDefectRequest#getAttachments()}, null to ignore them.
+     */
+    public RallyDefectSubmitter(RallyReferenceResolver resolver, RallyOpenDefects openDefects, RallyAttachmentUploader attachmentUploader) {
+        this.resolver = resolver;
+        this.openDefects = openDefects;
+        this.attachmentUploader = attachmentUploader;
+        for (int i = 0; i < keyLocks.length; i++)
+            keyLocks[i] = new Object();
+    }
+
+    /**
+     * @param request - the defect to create.
+     * @param logger - receives the same "... " progress lines the publisher has always written to the console.
+     * @return the created defect, or the open defect the failure was added to, or why it cannot be created:
+     *         the errors Rally gave for refusing it, or a workspace, project or user Rally does not know.
+     *         Attachments are only uploaded with a new defect.
+     * @throws IOException if Rally could not be reached, worth trying again later.
+     */
+    public RallyDefectResult submit(RallyDefectRequest request, PrintStream logger) throws IOException {
+        String openDefectKey = openDefects == null ? null : request.getOpenDefectKey();
+        if (openDefectKey == null)
+            return submit(request, null, logger);
+        // Two failures of the same job at once would otherwise both miss the open defect and file one each.
+        synchronized (keyLocks[(openDefectKey.hashCode() & Integer.MAX_VALUE) % keyLocks.length]) {
+            return submit(request, openDefectKey, logger);
+        }
+    }
+
+    private RallyDefectResult submit(RallyDefectRequest request, String openDefectKey, PrintStream logger) throws IOException {
+        RallyClientPool rally = resolver.getRallyClientPool();
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        long start = System.nanoTime();
+        if (openDefectKey != null) {
+            RallyOpenDefects.OpenDefect openDefect = openDefects.get(openDefectKey);
+            if (openDefect != null) {
+                boolean added = addOccurrence(rally, openDefect, request, logger);
+                start = lap(timings, "Update open defect", start);
+                if (added) {
+                    openDefects.occurred(openDefectKey, request.getBuildId());
+                    // The defect already carries the artifacts of the failure it was filed for.
+                    logTimings(timings, logger);
+                    return RallyDefectResult.created(openDefect.getDefectRef(), openDefect.getDefectUrl(), timings);
+                }
+                // Closed or deleted in Rally, even if no new defect can be created below.
+                openDefects.remove(openDefectKey);
+            }
+        }
+
+        String workspaceRef = resolver.getWorkspaceReference();
+        start = lap(timings, "Workspace", start);
+        if (workspaceRef == null)
+            return unresolved("Unable to find the configured workspace in Rally", timings, logger);
+        String projectRef = resolver.getProjectReference(workspaceRef, request.getProject());
+        start = lap(timings, "Project", start);
+        logger.println("... Workspace                       = " + workspaceRef);
+        logger.println("... Project                         = " + projectRef);
+        // A name Rally does not know is a configuration error, retrying would not find it either.
+        if (projectRef == null)
+            return unresolved("Unable to find the project " + request.getProject() + " in Rally", timings, logger);
+
+        // One lookup serves SubmittedBy, Owner and Author.
+        String userRef = resolver.getUserReference(request.getSubmittedBy());
+        start = lap(timings, "User", start);
+        if (userRef == null)
+            return unresolved("Unable to resolve username " + request.getSubmittedBy(), timings, logger);
+
+        // Tags go into the create request itself rather than a follow up update.
+        JsonArray Tags = new JsonArray();
+        for (String tagName : request.getTags()) {
+            String tagRef = resolver.getTagReference(workspaceRef, tagName);
+            if (tagRef == null) {
+                logger.println("... Unable to find tag " + tagName + ", the defect will not carry it.");
+            } else {
+                JsonObject tag = new JsonObject();
+                tag.addProperty("_ref", tagRef);
+                Tags.add(tag);
+            }
+        }
+        start = lap(timings, "Tags", start);
+
+        JsonObject newDefect = new JsonObject();
+        newDefect.addProperty("Name",        request.getName());
+        newDefect.addProperty("Description", request.getDescription() + ConsoleLogTail.toHtml(request.getLogTail()));
+        newDefect.addProperty("Workspace",   workspaceRef);
+        newDefect.addProperty("Project",     projectRef);
+        newDefect.addProperty("SubmittedBy", userRef);
+        newDefect.addProperty("Owner",       userRef);
+        newDefect.addProperty("Author",      userRef);
+        for (Map.Entry<String, String> attribute : request.getAttributes().entrySet())
+            newDefect.addProperty(attribute.getKey(), attribute.getValue());
+        newDefect.add("Tags", Tags);
+
+        RallyRestApi restApi = rally.borrow();
+        try {
+            CreateRequest createRequest = new CreateRequest("defect", newDefect);
+            CreateResponse createResponse = restApi.create(createRequest);
+            start = lap(timings, "Create", start);
+            if (createResponse.wasSuccessful()) {
+                // Grab the URL reference to the defect
+                String defectReference = createResponse.getObject().get("_ref").getAsString();
+                String defectUrl = defectUrl(rally, projectRef, defectReference);
+                logger.println("... Created new defect " + defectUrl);
+                if (openDefectKey != null)
+                    openDefects.put(openDefectKey, new RallyOpenDefects.OpenDefect(defectReference, defectUrl, request.getBuildId()));
+                // The connection is not needed while the attachments take their own.
+                restApi.close();
+                restApi = null;
+                attach(rally, defectReference, request, timings, start, logger);
+                logTimings(timings, logger);
+                return RallyDefectResult.created(defectReference, defectUrl, timings);
+            } else {
+                logTimings(timings, logger);
+                logger.println("... Unable to create defect");
+                for (int i = 0; i < createResponse.getErrors().length; i++) {
+                    logger.println(createResponse.getErrors()[i]);
+                }
+                return RallyDefectResult.rejected(createResponse.getErrors(), timings);
+            }
+        } finally {
+            // Hand the connection back to the shared pool.
+            if (restApi != null)
+                restApi.close();
+        }
+    }
+
+    private static RallyDefectResult unresolved(String error, Map<String, Long> timings, PrintStream logger) {
+        logTimings(timings, logger);
+        logger.println("... " + error + ", no defect created. Check the job configuration.");
+        return RallyDefectResult.rejected(new String[] { error }, timings);
+    }
+
+    private void attach(RallyClientPool rally, String defectReference, RallyDefectRequest request,
+                        Map<String, Long> timings, long start, PrintStream logger) {
+        if (attachmentUploader == null || request.getAttachments().isEmpty())
+            return;
+        attachmentUploader.attach(rally, defectReference, request.getAttachments(), logger);
+        lap(timings, "Attachments", start);
+    }
+
+    /**
+     * Records how long the step that began at start took.
+     * @return the start of the next step.
+     */
+    private static long lap(Map<String, Long> timings, String step, long start) {
+        long now = System.nanoTime();
+        timings.put(step, TimeUnit.NANOSECONDS.toMillis(now - start));
+        return now;
+    }
+
+    private static void logTimings(Map<String, Long> timings, PrintStream logger) {
+        StringBuilder line = new StringBuilder("... Rally timings (ms)             =");
+        for (Map.Entry<String, Long> timing : timings.entrySet())
+            line.append(" ").append(timing.getKey()).append(" ").append(timing.getValue());
+        logger.println(line);
+    }
+
+    /**
+     * Notes the failure on the discussion of the open defect, unless it has been closed in Rally
+     * since the last failure.
+     * @return false if the defect is closed, or Rally refused, e.g. because the defect has been deleted.
+     */
+    private boolean addOccurrence(RallyClientPool rally, RallyOpenDefects.OpenDefect openDefect,
+                                  RallyDefectRequest request, PrintStream logger) throws IOException {
+        JsonObject post = new JsonObject();
+        post.addProperty("Artifact", openDefect.getDefectRef());
+        post.addProperty("Text",     request.getName() + "<br/>" + request.getDescription() + ConsoleLogTail.toHtml(request.getLogTail()));
+        RallyRestApi restApi = rally.borrow();
+        try {
+            GetRequest getRequest = new GetRequest(openDefect.getDefectRef());
+            getRequest.setFetch(new Fetch("State", "ScheduleState"));
+            GetResponse getResponse = restApi.get(getRequest);
+            if (!getResponse.wasSuccessful()) {
+                logger.println("... Unable to read open defect " + openDefect.getDefectUrl() + ", creating a new one");
+                for (int i = 0; i < getResponse.getErrors().length; i++) {
+                    logger.println(getResponse.getErrors()[i]);
+                }
+                return false;
+            }
+            if (isClosed(getResponse.getObject())) {
+                logger.println("... Open defect " + openDefect.getDefectUrl() + " has been closed, creating a new one");
+                return false;
+            }
+            CreateResponse createResponse = restApi.create(new CreateRequest("conversationpost", post));
+            if (createResponse.wasSuccessful()) {
+                logger.println("... Failure added to open defect " + openDefect.getDefectUrl()
+                        + " (occurrence " + (openDefect.getOccurrences() + 1) + ")");
+                return true;
+            }
+            logger.println("... Unable to update open defect " + openDefect.getDefectUrl() + ", creating a new one");
+            for (int i = 0; i < createResponse.getErrors().length; i++) {
+                logger.println(createResponse.getErrors()[i]);
+            }
+            return false;
+        } finally {
+            restApi.close();
+        }
+    }
+
+    /**
+     * @return true if the fix has been made or accepted, a new failure then needs a defect of its own.
+     */
+    static boolean isClosed(JsonObject defect) {
+        String state = stringValue(defect, "State");
+        String scheduleState = stringValue(defect, "ScheduleState");
+        return "Fixed".equals(state) || "Closed".equals(state)
+                || "Accepted".equals(scheduleState) || "Released".equals(scheduleState);
+    }
+
+    private static String stringValue(JsonObject object, String name) {
+        JsonElement value = object == null ? null : object.get(name);
+        return value == null || !value.isJsonPrimitive() ? null : value.getAsString();
+    }
+
+    /**
+     * @return link to the defect in the Rally web application.
+     */
+    static String defectUrl(RallyClientPool rally, String projectRef, String defectReference) {
+        // Grab the defect reference number
+        String defectNum = defectReference.split("/")[(defectReference.split("/").length - 1)];
+        // Grab the project number
+        String projectNum = projectRef.split("/")[(projectRef.split("/").length - 1)];
+        String server = rally.getServer().toString();
+        if (server.endsWith("/"))
+            server = server.substring(0, server.length() - 1);
+        return server + "/#/" + projectNum + "/detail/defect/" + defectNum;
+    }
+}
@@ -0,0 +1,212 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.util.Timer;
+
+
+/**
+ * Notices when builds fail faster than a threshold, typically because shared infrastructure
+ * broke, and files one umbrella defect per Rally project listing the failed builds instead of
+ * one defect per build.
+ * <p>
+ * A storm starts once {@code threshold} failures fall within the sliding window. Failures are
+ * then collected until the window closes and flushed to the {@link RallyDefectQueue} as a batch.
+ * A storm that is still raging starts a new batch with the next failure.
+ * <p>
+ * The batch is written to a file under JENKINS_HOME with every failure it takes, so that the
+ * failures of a storm still get their umbrella defect when the controller restarts meanwhile.
+ *
+ * @author Frank Rouse
+ */
+public class RallyFailureStorm {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyFailureStorm.class.getName());
+
+    public static final int DEFAULT_THRESHOLD      = 25;
+    public static final int DEFAULT_WINDOW_MINUTES = 5;
+
+    private final RallyDefectQueue defectQueue;
+    // The current batch, null to keep it in memory only.
+    private final XmlFile file;
+    private int threshold = DEFAULT_THRESHOLD;
+    private long windowMillis = TimeUnit.MINUTES.toMillis(DEFAULT_WINDOW_MINUTES);
+
+    // Times of the failures within the window, oldest first.
+    private final Deque<Long> failures = new ArrayDeque<Long>();
+    // Failures held for the umbrella defects keyed by Rally project, null while there is no storm.
+    private Map<String, List<RallyDefectRequest>> batch;
+    private long batchStart;
+
+    public RallyFailureStorm(RallyDefectQueue defectQueue) {
+        this(defectQueue, null);
+    }
+
+    /**
+     * @param file - holds the batch of a storm, one left by a previous run is resumed by {@link #start()}.
+     */
+    public RallyFailureStorm(RallyDefectQueue defectQueue, File file) {
+        this.defectQueue = defectQueue;
+        this.file = file == null ? null : new XmlFile(file);
+    }
+
+    /**
+     * Resumes the batch a previous run left, flushing it when its window closes. Called once
+     * the storm is configured and the queue can submit defects.
+     */
+    public synchronized void start() {
+        if (file == null || !file.exists())
+            return;
+        try {
+            Batch saved = (Batch) file.read();
+            batch = saved.requests;
+            batchStart = saved.start;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to read the failure storm batch from " + file, e);
+            return;
+        } catch (ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Ignoring unexpected content of " + file, e);
+            return;
+        }
+        LOGGER.log(Level.INFO, "Resuming the failure storm batch started {0}", new Date(batchStart));
+        scheduleFlush(Math.max(0, batchStart + windowMillis - System.currentTimeMillis()));
+    }
+
+    // Called with the lock held.
+    private void save() {
+        if (file == null)
+            return;
+        try {
+            file.write(new Batch(batchStart, batch));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the failure storm batch to " + file, e);
+        }
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        Timer.get().schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param threshold - number of failures within the window that makes a storm, 0 to never aggregate.
+     */
+    public synchronized void configure(int threshold, int windowMinutes) {
+        this.threshold = threshold;
+        this.windowMillis = TimeUnit.MINUTES.toMillis(windowMinutes);
+    }
+
+    /**
+     * Counts the failure and holds its defect back if the failure is part of a storm.
+     * @return true if the build will be listed on an umbrella defect rather than get a defect of its own.
+     */
+    public synchronized boolean absorb(RallyDefectRequest request) {
+        long now = System.currentTimeMillis();
+        failures.addLast(now);
+        while (!failures.isEmpty() && failures.peekFirst() <= now - windowMillis)
+            failures.removeFirst();
+        if (threshold <= 0)
+            return false;
+        if (batch == null) {
+            if (failures.size() < threshold)
+                return false;
+            LOGGER.log(Level.WARNING, "{0} builds failed within {1} minutes, collecting their defects for {1} minutes",
+                    new Object[] {failures.size(), TimeUnit.MILLISECONDS.toMinutes(windowMillis)});
+            batch = new LinkedHashMap<String, List<RallyDefectRequest>>();
+            batchStart = now;
+            scheduleFlush(windowMillis);
+        }
+        List<RallyDefectRequest> requests = batch.get(request.getProject());
+        if (requests == null) {
+            requests = new ArrayList<RallyDefectRequest>();
+            batch.put(request.getProject(), requests);
+        }
+        requests.add(request);
+        save();
+        return true;
+    }
+
+    public synchronized boolean isStorming() {
+        return batch != null;
+    }
+
+    /**
+     * Queues one umbrella defect for each project of the batch.
+     */
+    void flush() {
+        Map<String, List<RallyDefectRequest>> closed;
+        long start;
+        synchronized (this) {
+            closed = batch;
+            start = batchStart;
+            batch = null;
+        }
+        if (closed == null)
+            return;
+        for (List<RallyDefectRequest> requests : closed.values()) {
+            RallyDefectRequest umbrella = umbrella(requests, start, System.currentTimeMillis());
+            try {
+                defectQueue.enqueue(umbrella);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Unable to queue the failure storm defect for " + requests.size() + " builds", e);
+            }
+        }
+        // Only once the umbrella defects are in the outbox. A restart before this flushes the batch again,
+        // and the outbox turns away the umbrella defects it still holds.
+        synchronized (this) {
+            if (batch == null && file != null)
+                file.delete();
+        }
+    }
+
+    /**
+     * Builds the umbrella defect from the settings of the first failure, linking every failed build.
+     */
+    static RallyDefectRequest umbrella(List<RallyDefectRequest> requests, long start, long end) {
+        RallyDefectRequest first = requests.get(0);
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        String Name = "Failure storm: " + requests.size() + " builds failed between "
+                + time.format(new Date(start)) + " and " + time.format(new Date(end));
+        StringBuilder Description = new StringBuilder("<p>" + Name + "</p><ul>");
+        List<String> buildIds = new ArrayList<String>();
+        for (RallyDefectRequest request : requests) {
+            Description.append("<li>").append(request.getName()).append(" - ").append(request.getDescription()).append("</li>");
+            buildIds.add(request.getBuildId());
+        }
+        Description.append("</ul>");
+        // The first build lends its id, it never got a defect of its own.
+        return new RallyDefectRequest(first.getJobFullName(), first.getBuildNumber(), Name, Description.toString(),
+                first.getProject(), first.getSubmittedBy(), first.getTags(), first.getAttributes(), null, buildIds);
+    }
+
+
+    /**
+     * What is written to the file.
+     */
+    private static final class Batch {
+        private final long start;
+        private final Map<String, List<RallyDefectRequest>> requests;
+
+        Batch(long start, Map<String, List<RallyDefectRequest>> requests) {
+            this.start    = start;
+            this.requests = requests;
+        }
+    }
+}
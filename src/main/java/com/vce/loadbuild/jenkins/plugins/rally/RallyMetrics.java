@@ -0,0 +1,149 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts and times every request made to Rally, by operation, and collects the hit ratios
+ * of the caches kept in front of it. Written out in the Prometheus text format by
+ * {@link RallyMetricsAction}.
+ *
+ * @author Frank Rouse
+ */
+public final class RallyMetrics {
+
+    private static final RallyMetrics INSTANCE = new RallyMetrics();
+
+    // Upper bounds, in seconds, of the latency histogram buckets.
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+    private final ConcurrentMap<String, TtlCache<?, ?>> caches = new ConcurrentHashMap<String, TtlCache<?, ?>>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private RallyMetrics() {
+    }
+
+    public static RallyMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param operation - e.g. "query" or "create".
+     * @param successful - false if the request failed or Rally answered with errors.
+     */
+    public void record(String operation, long nanos, boolean successful) {
+        Operation stats = operations.get(operation);
+        if (stats == null) {
+            Operation newStats = new Operation();
+            stats = operations.putIfAbsent(operation, newStats);
+            if (stats == null)
+                stats = newStats;
+        }
+        stats.record(nanos, successful);
+    }
+
+    /**
+     * Reports the hits and misses of the cache under the given name, replacing any cache registered before.
+     */
+    public void registerCache(String name, TtlCache<?, ?> cache) {
+        caches.put(name, cache);
+    }
+
+    /**
+     * Reports a value read when the metrics are written, e.g. a queue length.
+     */
+    public void registerGauge(String name, String help, Gauge gauge) {
+        gauges.put(name + "\n" + help, gauge);
+    }
+
+    /**
+     * Writes everything in the Prometheus text exposition format, version 0.0.4.
+     */
+    public void write(PrintWriter out) {
+        Map<String, Operation> sorted = new TreeMap<String, Operation>(operations);
+        out.println("# HELP rally_requests_total Requests made to Rally.");
+        out.println("# TYPE rally_requests_total counter");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet())
+            out.println("rally_requests_total{operation=\"" + entry.getKey() + "\"} " + entry.getValue().count.get());
+        out.println("# HELP rally_request_errors_total Requests that failed or that Rally answered with errors.");
+        out.println("# TYPE rally_request_errors_total counter");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet())
+            out.println("rally_request_errors_total{operation=\"" + entry.getKey() + "\"} " + entry.getValue().errors.get());
+        out.println("# HELP rally_request_duration_seconds Time taken by requests to Rally.");
+        out.println("# TYPE rally_request_duration_seconds histogram");
+        for (Map.Entry<String, Operation> entry : sorted.entrySet()) {
+            String operation = entry.getKey();
+            Operation stats = entry.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += stats.buckets.get(i);
+                out.println("rally_request_duration_seconds_bucket{operation=\"" + operation + "\",le=\"" + BUCKETS[i] + "\"} " + cumulative);
+            }
+            out.println("rally_request_duration_seconds_bucket{operation=\"" + operation + "\",le=\"+Inf\"} " + stats.count.get());
+            out.println("rally_request_duration_seconds_sum{operation=\"" + operation + "\"} "
+                    + String.format(Locale.ENGLISH, "%.6f", stats.sumNanos.get() / 1e9));
+            out.println("rally_request_duration_seconds_count{operation=\"" + operation + "\"} " + stats.count.get());
+        }
+
+        Map<String, TtlCache<?, ?>> sortedCaches = new TreeMap<String, TtlCache<?, ?>>(caches);
+        out.println("# HELP rally_cache_hits_total Lookups answered from a cache in front of Rally.");
+        out.println("# TYPE rally_cache_hits_total counter");
+        for (Map.Entry<String, TtlCache<?, ?>> entry : sortedCaches.entrySet())
+            out.println("rally_cache_hits_total{cache=\"" + entry.getKey() + "\"} " + entry.getValue().getHitCount());
+        out.println("# HELP rally_cache_misses_total Lookups that had to go to Rally.");
+        out.println("# TYPE rally_cache_misses_total counter");
+        for (Map.Entry<String, TtlCache<?, ?>> entry : sortedCaches.entrySet())
+            out.println("rally_cache_misses_total{cache=\"" + entry.getKey() + "\"} " + entry.getValue().getMissCount());
+        out.println("# HELP rally_cache_entries Entries held by a cache in front of Rally.");
+        out.println("# TYPE rally_cache_entries gauge");
+        for (Map.Entry<String, TtlCache<?, ?>> entry : sortedCaches.entrySet())
+            out.println("rally_cache_entries{cache=\"" + entry.getKey() + "\"} " + entry.getValue().size());
+
+        for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            String[] nameAndHelp = entry.getKey().split("\n", 2);
+            out.println("# HELP " + nameAndHelp[0] + " " + nameAndHelp[1]);
+            out.println("# TYPE " + nameAndHelp[0] + " gauge");
+            out.println(nameAndHelp[0] + " " + entry.getValue().value());
+        }
+    }
+
+
+    /**
+     * A value that is read when the metrics are written.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+
+    private static final class Operation {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        // Not cumulative, the running total is added up when written.
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+
+        void record(long nanos, boolean successful) {
+            double seconds = nanos / (double) TimeUnit.SECONDS.toNanos(1);
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            sumNanos.addAndGet(nanos);
+            if (!successful)
+                errors.incrementAndGet();
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import jenkins.model.Jenkins;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+
+/**
+ * Serves {@link RallyMetrics} at JENKINS_URL/rally-metrics/ in the Prometheus text format.
+ * Needs the overall read permission, scrapers authenticate with a user's API token.
+ *
+ * @author Frank Rouse
+ */
+@Extension
+public class RallyMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        // Not shown in the side panel.
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Rally Metrics";
+    }
+
+    public String getUrlName() {
+        return "rally-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = rsp.getWriter();
+        RallyMetrics.get().write(out);
+        out.flush();
+    }
+}
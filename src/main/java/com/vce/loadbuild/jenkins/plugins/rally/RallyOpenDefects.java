@@ -0,0 +1,149 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * The defects still open for failing jobs, so that the next failure of a job adds an
+ * occurrence to its defect instead of filing another one. Kept in a single XML file
+ * under JENKINS_HOME.
+ * <p>
+ * A job's defects are forgotten once it builds successfully again, and a defect as soon as
+ * it is found closed in Rally.
+ *
+ * @author Frank Rouse
+ */
+public class RallyOpenDefects {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyOpenDefects.class.getName());
+
+    // Separates the job from the optional failure signature in a key.
+    private static final String SIGNATURE_SEPARATOR = " | ";
+
+    private final XmlFile file;
+    private final Map<String, OpenDefect> defects = new HashMap<String, OpenDefect>();
+
+    public RallyOpenDefects(File file) {
+        this.file = new XmlFile(file);
+        load();
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized void load() {
+        if (!file.exists())
+            return;
+        try {
+            defects.putAll((Map<String, OpenDefect>) file.read());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to read the open Rally defects from " + file, e);
+        }
+    }
+
+    /**
+     * @param signature - tells apart different failures of the same job, null if all failures share a defect.
+     * @return key of the defect tracking the failure.
+     */
+    public static String key(String jobFullName, String signature) {
+        return signature == null ? jobFullName : jobFullName + SIGNATURE_SEPARATOR + signature;
+    }
+
+    /**
+     * @return the open defect tracking the failure, null if there is none.
+     */
+    public synchronized OpenDefect get(String key) {
+        return defects.get(key);
+    }
+
+    public synchronized void put(String key, OpenDefect defect) {
+        defects.put(key, defect);
+        save();
+    }
+
+    /**
+     * Records one more failure on the open defect.
+     */
+    public synchronized void occurred(String key, String buildId) {
+        OpenDefect defect = defects.get(key);
+        if (defect == null)
+            return;
+        defect.occurrences++;
+        defect.lastBuildId = buildId;
+        save();
+    }
+
+    public synchronized void remove(String key) {
+        if (defects.remove(key) != null)
+            save();
+    }
+
+    /**
+     * Forgets every open defect of the job, whatever its failure signature.
+     */
+    public synchronized void resolved(String jobFullName) {
+        boolean changed = false;
+        for (Iterator<String> keys = defects.keySet().iterator(); keys.hasNext();) {
+            String key = keys.next();
+            if (key.equals(jobFullName) || key.startsWith(jobFullName + SIGNATURE_SEPARATOR)) {
+                keys.remove();
+                changed = true;
+            }
+        }
+        if (changed)
+            save();
+    }
+
+    private void save() {
+        try {
+            file.write(defects);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to save the open Rally defects to " + file, e);
+        }
+    }
+
+
+    /**
+     * A defect filed for a failure that has not been fixed yet.
+     */
+    public static final class OpenDefect {
+        private final String defectRef;
+        private final String defectUrl;
+        private final String firstBuildId;
+        private String lastBuildId;
+        private int occurrences = 1;
+
+        public OpenDefect(String defectRef, String defectUrl, String buildId) {
+            this.defectRef    = defectRef;
+            this.defectUrl    = defectUrl;
+            this.firstBuildId = buildId;
+            this.lastBuildId  = buildId;
+        }
+
+        public String getDefectRef() {
+            return defectRef;
+        }
+
+        public String getDefectUrl() {
+            return defectUrl;
+        }
+
+        public String getFirstBuildId() {
+            return firstBuildId;
+        }
+
+        public String getLastBuildId() {
+            return lastBuildId;
+        }
+
+        public int getOccurrences() {
+            return occurrences;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+
+/**
+ * Case insensitive index of the projects of one workspace. A project can be looked up
+ * either by its name or by its full path, e.g. "VCE &gt; Platform &gt; Build Release Management (SCM)".
+ * Names and paths can also be completed from their first letters, for the Project field
+ * of the job configuration page.
+ * <p>
+ * The index is read in full once, its pages concurrently. Afterwards only the projects
+ * updated since the previous read are fetched, normally in the background, and merged in.
+ * Closed projects are dropped as they are read. Deleted projects are never returned by an
+ * incremental read, so every hour the index is read in full again and replaced.
+ * A read that runs out of time keeps the pages it got, and the next one starts over.
+ * <p>
+ * Reads are made without holding a lock and their result replaces the lookup tables as a
+ * whole, so lookups never wait for Rally. A refresh asked for while another one is running
+ * waits for that one instead of reading again.
+ *
+ * @author Frank Rouse
+ */
+public class RallyProjectIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(RallyProjectIndex.class.getName());
+
+    public static final String PATH_SEPARATOR = " > ";
+
+    // How old the index may get before a lookup triggers a background refresh.
+    private static final long REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // How long a read may take before the index makes do with the pages read so far.
+    private static final long LOAD_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // How often the index is read in full, to forget deleted projects.
+    private static final long FULL_READ_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String workspaceRef;
+
+    // Everything read from Rally so far keyed by project reference. Only the read in flight replaces it.
+    private volatile Map<String, ProjectRecord> records = Collections.emptyMap();
+    // Latest LastUpdateDate seen, the starting point of the next incremental read.
+    private volatile String lastUpdateDate = null;
+    // When the last complete full read started.
+    private volatile long lastFullRead = 0;
+
+    // Lookup tables rebuilt from the records after every refresh and replaced as a whole.
+    private volatile Map<String, String> refsByName = Collections.emptyMap();
+    private volatile Map<String, String> refsByPath = Collections.emptyMap();
+    private volatile PrefixIndex prefixIndex = new PrefixIndex(new TreeMap<String, String>());
+    private volatile long lastRefresh = 0;
+    // False after a read that ran out of time, the next lookup then starts a refresh straight away.
+    private volatile boolean complete = false;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+    // The read every refresh asked for meanwhile waits for, null if none is running.
+    private final AtomicReference<FutureTask<Void>> inFlight = new AtomicReference<FutureTask<Void>>();
+
+    public RallyProjectIndex(String workspaceRef) {
+        this.workspaceRef = workspaceRef;
+    }
+
+    public String getWorkspaceRef() {
+        return workspaceRef;
+    }
+
+    public boolean isLoaded() {
+        return lastRefresh > 0;
+    }
+
+    /**
+     * @param nameOrPath - project name or full project path, case is ignored.
+     * @return Rally project reference if found, null if nothing found.
+     */
+    public String lookup(String nameOrPath) {
+        String key = normalize(nameOrPath);
+        String projectRef = refsByName.get(key);
+        if (projectRef == null)
+            projectRef = refsByPath.get(key);
+        return projectRef;
+    }
+
+    /**
+     * Reads all projects of the workspace the first time and once an hour, only the projects updated since the previous
+     * read otherwise.
+     */
+    public void refresh(RallyClientPool rally) throws IOException {
+        refresh(rally, null);
+    }
+
+    /**
+     * Reads on the calling thread, or waits for the read already running.
+     * @param executor - reads the pages after the first concurrently, null to read them one after the other.
+     */
+    public void refresh(final RallyClientPool rally, final ExecutorService executor) throws IOException {
+        FutureTask<Void> read;
+        while ((read = inFlight.get()) == null) {
+            FutureTask<Void> newRead = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws IOException {
+                    read(rally, executor);
+                    return null;
+                }
+            });
+            if (inFlight.compareAndSet(null, newRead)) {
+                try {
+                    newRead.run();
+                } finally {
+                    inFlight.compareAndSet(newRead, null);
+                }
+            }
+        }
+        try {
+            read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the Rally projects of workspace " + workspaceRef);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void read(RallyClientPool rally, ExecutorService executor) throws IOException {
+        long started = System.currentTimeMillis();
+        boolean fullRead = lastUpdateDate == null || started - lastFullRead >= FULL_READ_INTERVAL_MILLIS;
+        RallyQuery query = RallyQuery.of("Project")
+                .inWorkspace(workspaceRef)
+                .fetch("Name", "Parent", "State", "LastUpdateDate")
+                .pageSize(RallyQuery.MAX_PAGE_SIZE);
+        if (!fullRead)
+            query.where("LastUpdateDate", ">=", lastUpdateDate);
+        // Lookups keep using the current records until the read is done. A full read fills a map of its own,
+        // whatever it does not return has been deleted.
+        final Map<String, ProjectRecord> read = fullRead
+                ? new LinkedHashMap<String, ProjectRecord>() : new LinkedHashMap<String, ProjectRecord>(records);
+        final String[] latestUpdate = { fullRead ? null : lastUpdateDate };
+        boolean allPages = RallyUtils.queryAllPages(query.build(), rally, executor, LOAD_TIMEOUT_MILLIS, new RallyUtils.PageHandler() {
+            public void page(JsonArray projects) {
+                for (JsonElement tempJson : projects) {
+                    JsonObject project = tempJson.getAsJsonObject();
+                    String projectRef = relativeProjectRef(project.get("_ref").getAsString());
+                    String parentRef = null;
+                    JsonElement parent = project.get("Parent");
+                    if (parent != null && !parent.isJsonNull())
+                        parentRef = relativeProjectRef(parent.getAsJsonObject().get("_ref").getAsString());
+                    JsonElement state = project.get("State");
+                    if (state != null && !state.isJsonNull() && "Closed".equals(state.getAsString()))
+                        // No defects can be filed in a closed project.
+                        read.remove(projectRef);
+                    else
+                        read.put(projectRef, new ProjectRecord(project.get("Name").getAsString(), parentRef));
+                    String updated = project.get("LastUpdateDate").getAsString();
+                    // ISO 8601 timestamps in the same format sort as strings.
+                    if (latestUpdate[0] == null || updated.compareTo(latestUpdate[0]) > 0)
+                        latestUpdate[0] = updated;
+                }
+            }
+        });
+        Map<String, ProjectRecord> updated = read;
+        if (fullRead && allPages) {
+            lastFullRead = started;
+        } else if (fullRead) {
+            updated = new LinkedHashMap<String, ProjectRecord>(records);
+            updated.putAll(read);
+        }
+        records = updated;
+        // Pages come in no particular date order, so after a partial read the same read has to be made again.
+        if (allPages)
+            lastUpdateDate = latestUpdate[0];
+        else
+            LOGGER.log(Level.WARNING, "Reading the Rally projects of workspace {0} took too long, {1} projects are known so far",
+                    new Object[] { workspaceRef, updated.size() });
+        rebuildLookupTables(updated);
+        complete = allPages;
+        lastRefresh = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts an incremental refresh on the executor if the index is getting old and no refresh is running.
+     */
+    public void refreshInBackground(final RallyClientPool rally, final ExecutorService executor) {
+        if ((complete && System.currentTimeMillis() - lastRefresh < REFRESH_INTERVAL_MILLIS) || !refreshing.compareAndSet(false, true))
+            return;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    refresh(rally, executor);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Unable to refresh the Rally projects of workspace " + workspaceRef, e);
+                } finally {
+                    refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private void rebuildLookupTables(Map<String, ProjectRecord> records) {
+        Map<String, String> byName = new HashMap<String, String>();
+        Map<String, String> byPath = new HashMap<String, String>();
+        Map<String, String> paths = new HashMap<String, String>();
+        TreeMap<String, String> completions = new TreeMap<String, String>();
+        for (Map.Entry<String, ProjectRecord> entry : records.entrySet()) {
+            String nameKey = normalize(entry.getValue().name);
+            // Keep the first project of a given name, as the original linear search did.
+            if (!byName.containsKey(nameKey))
+                byName.put(nameKey, entry.getKey());
+            String path = pathOf(entry.getKey(), records, paths, new HashSet<String>());
+            byPath.put(normalize(path), entry.getKey());
+            if (!completions.containsKey(nameKey))
+                completions.put(nameKey, entry.getValue().name);
+            completions.put(normalize(path), path);
+        }
+        refsByName = byName;
+        refsByPath = byPath;
+        prefixIndex = new PrefixIndex(completions);
+    }
+
+    private static String pathOf(String projectRef, Map<String, ProjectRecord> records, Map<String, String> paths,
+                                 Set<String> visiting) {
+        String path = paths.get(projectRef);
+        if (path != null)
+            return path;
+        ProjectRecord record = records.get(projectRef);
+        // Guard against a parent we have not read or a cycle while a project is being moved.
+        if (record.parentRef == null || !records.containsKey(record.parentRef) || !visiting.add(projectRef))
+            path = record.name;
+        else
+            path = pathOf(record.parentRef, records, paths, visiting) + PATH_SEPARATOR + record.name;
+        paths.put(projectRef, path);
+        return path;
+    }
+
+    /**
+     * @param prefix - start of a project name or full project path, case is ignored.
+     * @return up to max names and paths starting with the prefix, in alphabetical order.
+     */
+    public List<String> complete(String prefix, int max) {
+        PrefixIndex index = prefixIndex;
+        String key = normalize(prefix);
+        int i = Arrays.binarySearch(index.keys, key);
+        if (i < 0)
+            i = -i - 1;
+        List<String> matches = new ArrayList<String>();
+        // Everything starting with the prefix sorts right after it.
+        for (; i < index.keys.length && matches.size() < max && index.keys[i].startsWith(key); i++)
+            matches.add(index.completions[i]);
+        return matches;
+    }
+
+    private static String normalize(String nameOrPath) {
+        return nameOrPath.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    private static String relativeProjectRef(String fullProjectReference) {
+        return fullProjectReference.substring(fullProjectReference.indexOf("project") - 1).replace("\"", "");
+    }
+
+
+    /**
+     * Normalized names and paths sorted for binary search, completions[i] being what keys[i] is shown as.
+     */
+    private static final class PrefixIndex {
+        private final String[] keys;
+        private final String[] completions;
+
+        PrefixIndex(SortedMap<String, String> byKey) {
+            keys        = byKey.keySet().toArray(new String[byKey.size()]);
+            completions = byKey.values().toArray(new String[byKey.size()]);
+        }
+    }
+
+
+    private static final class ProjectRecord {
+        private final String name;
+        private final String parentRef;
+
+        ProjectRecord(String name, String parentRef) {
+            this.name      = name;
+            this.parentRef = parentRef;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.util.Collection;
+
+import com.google.gson.JsonObject;
+import com.rallydev.rest.request.QueryRequest;
+import com.rallydev.rest.util.Fetch;
+import com.rallydev.rest.util.QueryFilter;
+
+
+/**
+ * Builds {@link QueryRequest}s that leave as much of the work as possible to Rally:
+ * filters, the fields to return, the page size and the total number of rows wanted.
+ * <pre>
+ * QueryRequest request = RallyQuery.of("Project")
+ *         .inWorkspace(workspaceRef)
+ *         .where("Name", "=", projectName)
+ *         .fetch("Name")
+ *         .limit(1)
+ *         .build();
+ * </pre>
+ *
+ * @author Frank Rouse
+ */
+public final class RallyQuery {
+
+    // Largest page WSAPI will return.
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private final QueryRequest request;
+    private QueryFilter filter = null;
+    private int pageSize = MAX_PAGE_SIZE;
+    private int limit = Integer.MAX_VALUE;
+
+    private RallyQuery(QueryRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * @param type - Example "Project"
+     */
+    public static RallyQuery of(String type) {
+        return new RallyQuery(new QueryRequest(type));
+    }
+
+    /**
+     * @param collection - a collection reference as returned by Rally, e.g. the "Attributes" of a TypeDefinition.
+     */
+    public static RallyQuery of(JsonObject collection) {
+        return new RallyQuery(new QueryRequest(collection));
+    }
+
+    public RallyQuery inWorkspace(String workspaceRef) {
+        request.setWorkspace(workspaceRef);
+        return this;
+    }
+
+    /**
+     * Adds a condition that every returned row must meet.
+     */
+    public RallyQuery where(String field, String operator, String value) {
+        return and(new QueryFilter(field, operator, value));
+    }
+
+    /**
+     * Adds a condition that every returned row must meet for at least one of the values.
+     */
+    public RallyQuery whereAny(String field, String operator, Collection<String> values) {
+        QueryFilter anyOf = null;
+        for (String value : values) {
+            QueryFilter condition = new QueryFilter(field, operator, value);
+            anyOf = anyOf == null ? condition : anyOf.or(condition);
+        }
+        if (anyOf != null)
+            and(anyOf);
+        return this;
+    }
+
+    private RallyQuery and(QueryFilter condition) {
+        filter = filter == null ? condition : filter.and(condition);
+        return this;
+    }
+
+    /**
+     * Only the listed fields are returned, "_ref" is always included by Rally.
+     */
+    public RallyQuery fetch(String... fields) {
+        request.setFetch(new Fetch(fields));
+        return this;
+    }
+
+    public RallyQuery orderBy(String order) {
+        request.setOrder(order);
+        return this;
+    }
+
+    public RallyQuery pageSize(int pageSize) {
+        this.pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+        return this;
+    }
+
+    /**
+     * Stops reading further pages once this many rows have been returned. Also shrinks the
+     * page size so that a single row lookup does not ask Rally for a full page.
+     */
+    public RallyQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public QueryRequest build() {
+        if (filter != null)
+            request.setQueryFilter(filter);
+        request.setPageSize(Math.max(1, Math.min(pageSize, limit)));
+        request.setLimit(limit);
+        return request;
+    }
+}
@@ -0,0 +1,153 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Controller wide limit on the requests made to Rally: a token bucket for the rate and a cap
+ * on the requests in flight, shared by every connection pool.
+ * <p>
+ * Defect writes go before the reads behind drop down lists, a read waits as long as a write
+ * is waiting. When Rally answers 429 Too Many Requests every request is held back for the
+ * time it asked for, or for the configured pause if it did not say.
+ *
+ * @author Frank Rouse
+ */
+public class RallyRateLimiter {
+
+    public static final int DEFAULT_REQUESTS_PER_SECOND = 10;
+    public static final int DEFAULT_MAX_IN_FLIGHT       = 8;
+    public static final int DEFAULT_THROTTLE_PAUSE      = 30;
+
+    private final Clock clock;
+    private double requestsPerSecond;
+    private int maxInFlight;
+    private long throttlePauseMillis = TimeUnit.SECONDS.toMillis(DEFAULT_THROTTLE_PAUSE);
+
+    // The bucket holds at most one second worth of requests.
+    private double tokens;
+    private long refilled;
+    private int inFlight;
+    private int waitingWrites;
+    private int waitingReads;
+    // Clock time before which no request is sent, after Rally throttled us.
+    private long pausedUntil;
+
+    /**
+     * A limiter that lets everything through, until it is configured.
+     */
+    public RallyRateLimiter() {
+        this(0, 0);
+    }
+
+    /**
+     * @param requestsPerSecond - 0 for no limit on the rate.
+     * @param maxInFlight - 0 for no limit on the requests in flight.
+     */
+    public RallyRateLimiter(int requestsPerSecond, int maxInFlight) {
+        this(requestsPerSecond, maxInFlight, Clock.SYSTEM);
+    }
+
+    RallyRateLimiter(int requestsPerSecond, int maxInFlight, Clock clock) {
+        this.clock = clock;
+        this.refilled = clock.nanoTime();
+        this.pausedUntil = refilled;
+        configure(requestsPerSecond, maxInFlight, DEFAULT_THROTTLE_PAUSE);
+    }
+
+    /**
+     * @param throttlePause - seconds to hold back after a 429 that came without Retry-After.
+     */
+    public synchronized void configure(int requestsPerSecond, int maxInFlight, int throttlePause) {
+        // A limit that was not there starts with a full bucket.
+        tokens = this.requestsPerSecond > 0 ? Math.min(tokens, requestsPerSecond) : requestsPerSecond;
+        this.requestsPerSecond   = requestsPerSecond;
+        this.maxInFlight         = maxInFlight;
+        this.throttlePauseMillis = TimeUnit.SECONDS.toMillis(throttlePause);
+        // Let waiting requests see the new limits.
+        notifyAll();
+    }
+
+    /**
+     * Waits for a turn to send a request, to be ended with {@link #release()}.
+     * @param write - true for the creates and updates a build is waiting on, false for reads.
+     * @throws IOException if no turn came within the timeout.
+     */
+    public void acquire(boolean write, long timeoutMillis) throws IOException {
+        long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this) {
+            if (write)
+                waitingWrites++;
+            else
+                waitingReads++;
+            try {
+                while (true) {
+                    long now = clock.nanoTime();
+                    refill(now);
+                    long waitNanos = deadline - now;
+                    if ((maxInFlight <= 0 || inFlight < maxInFlight) && (write || waitingWrites == 0)) {
+                        if (pausedUntil - now > 0) {
+                            waitNanos = Math.min(waitNanos, pausedUntil - now);
+                        } else if (requestsPerSecond > 0 && tokens < 1) {
+                            waitNanos = Math.min(waitNanos, (long) ((1 - tokens) / requestsPerSecond * TimeUnit.SECONDS.toNanos(1)) + 1);
+                        } else {
+                            if (requestsPerSecond > 0)
+                                tokens -= 1;
+                            inFlight++;
+                            return;
+                        }
+                    }
+                    if (deadline - now <= 0)
+                        throw new IOException("Timed out waiting for a turn to call Rally, " + inFlight + " requests in flight.");
+                    TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a turn to call Rally.");
+            } finally {
+                if (write)
+                    waitingWrites--;
+                else
+                    waitingReads--;
+                // A read may have been held back for this write.
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Holds every request back after Rally answered 429.
+     * @param retryAfterSeconds - what Rally asked for, negative if it did not say.
+     */
+    public synchronized void throttled(long retryAfterSeconds) {
+        long pause = retryAfterSeconds >= 0 ? TimeUnit.SECONDS.toNanos(retryAfterSeconds) : TimeUnit.MILLISECONDS.toNanos(throttlePauseMillis);
+        long until = clock.nanoTime() + pause;
+        if (until - pausedUntil > 0)
+            pausedUntil = until;
+    }
+
+    private void refill(long now) {
+        if (requestsPerSecond > 0)
+            tokens = Math.min(requestsPerSecond, tokens + (now - refilled) / (double) TimeUnit.SECONDS.toNanos(1) * requestsPerSecond);
+        refilled = now;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaitingWrites() {
+        return waitingWrites;
+    }
+
+    public synchronized int getWaitingReads() {
+        return waitingReads;
+    }
+}
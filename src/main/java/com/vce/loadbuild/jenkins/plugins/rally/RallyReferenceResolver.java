@@ -0,0 +1,35 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+
+
+/**
+ * Turns the names used in a job configuration into Rally references.
+ * Implemented by {@link CreateRallyDefectDescriptor} on top of its caches.
+ *
+ * @author Frank Rouse
+ */
+public interface RallyReferenceResolver {
+
+    RallyClientPool getRallyClientPool();
+
+    /**
+     * @return reference of the configured workspace, null if Rally does not know it.
+     */
+    String getWorkspaceReference() throws IOException;
+
+    /**
+     * @return Rally project reference if found, null if nothing found.
+     */
+    String getProjectReference(String workspaceRef, String projectName) throws IOException;
+
+    /**
+     * @return Rally user reference, null if Rally does not know the user.
+     */
+    String getUserReference(String userName) throws IOException;
+
+    /**
+     * @return Rally tag reference, null if the workspace has no such tag.
+     */
+    String getTagReference(String workspaceRef, String tagName) throws IOException;
+}
@@ -1,12 +1,26 @@
 package com.vce.loadbuild.jenkins.plugins.rally;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -19,38 +33,38 @@ import com.rallydev.rest.util.QueryFilter;
 
 
 public class RallyUtils {
-    public static final String RALLY_URL = "https://rally1.rallydev.com";
-
-    // Store previous queries to speed up the process
-    private static Map<String, String> workspaceRef = new HashMap<String, String>();
 
-    public static String getWorkspaceReference(String workspaceName, String RallyApiKey) throws URISyntaxException, IOException {
+    private static final Logger LOGGER = Logger.getLogger(RallyUtils.class.getName());
 
-        // Check to see if we have used this value before.
-        String workspaceReference = workspaceRef.get(workspaceName);
+    // The hosted Rally, used unless another server is set in the global configuration.
+    public static final String RALLY_URL = "https://rally1.rallydev.com";
 
-        // I guess we haven't asked about this one before
-        if (workspaceReference == null) {
-            RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RallyApiKey);
-            QueryRequest projectRequest = new QueryRequest("Workspaces");
-            projectRequest.setQueryFilter(new QueryFilter("Name", "=", workspaceName));
-            projectRequest.setFetch(new Fetch("_ref"));
+    /**
+     * Always asks Rally, callers keep the answer (see CreateRallyDefectDescriptor#getWorkspaceReference()).
+     * @return Rally workspace reference, null if nothing found.
+     */
+    public static String getWorkspaceReference(String workspaceName, RallyClientPool rally) throws IOException {
+        String workspaceReference = null;
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest projectRequest = RallyQuery.of("Workspaces")
+                    .where("Name", "=", workspaceName)
+                    .fetch("_ref")
+                    .limit(1)
+                    .build();
             QueryResponse workspaceQueryResponse = restApi.query(projectRequest);
             if (workspaceQueryResponse.wasSuccessful()) {
                 if (workspaceQueryResponse.getResults().size() > 0) {
                     String full_reference = workspaceQueryResponse.getResults().get(0).getAsJsonObject().get("_ref").toString();
                     workspaceReference = full_reference.substring(full_reference.indexOf("workspace") - 1).replace("\"", "");
-                    workspaceRef.put(workspaceName, workspaceReference);
                 } else {
-                    System.out.println("Unable to find a reference for workspace \"" + workspaceName + "\"");
+                    LOGGER.log(Level.WARNING, "Unable to find a reference for workspace \"{0}\"", workspaceName);
                 }
             } else {
-                System.out.println("Unsuccessful workspace query.");
-                String errors[] = workspaceQueryResponse.getErrors();
-                for (String tempString : errors) {
-                    System.out.println(tempString);
-                }
+                LOGGER.log(Level.WARNING, "Unsuccessful workspace query: {0}", Arrays.toString(workspaceQueryResponse.getErrors()));
             }
+        } finally {
+            // Hand the connection back to the pool regardless of the outcome.
             restApi.close();
         }
         return workspaceReference;
@@ -61,58 +75,59 @@ public class RallyUtils {
  * @param workspaceRef - limits the search to a single workspace.
  * @param field - the field that we are looking for values.
  * @param value - the value that we test is part of the list of allowable values.
- * @param RallyAPIKey
+ * @param rally - pool of Rally clients for the API key in use.
  * @return
- * @throws URISyntaxException
  * @throws IOException
  * Developed earlier in the plugin process. Not used anymore but kept as a reference.
  */
-    public static boolean givenDefectValueAllowable(String workspaceRef, String field, String value, String RallyAPIKey) throws URISyntaxException, IOException {
+    public static boolean givenDefectValueAllowable(String workspaceRef, String field, String value, RallyClientPool rally) throws IOException {
         // Set a boolean so we have a single point of exit.
         boolean found = false;
         // Pad with quotation marks as this is what is returned from the query.
         value = "\"" + value + "\"";
 
-        RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RallyAPIKey);
-        QueryRequest typeDefRequest = new QueryRequest("TypeDefinition");
-        typeDefRequest.setWorkspace(workspaceRef);
-        typeDefRequest.setFetch(new Fetch("ObjectID", "Attributes"));
-        typeDefRequest.setQueryFilter(new QueryFilter("Name", "=", "Defect"));
-        QueryResponse typeDefQueryResponse = restApi.query(typeDefRequest);
-        JsonObject typeDefJsonObject = typeDefQueryResponse.getResults().get(0).getAsJsonObject();
-        QueryRequest attributeRequest = new QueryRequest(typeDefJsonObject.getAsJsonObject("Attributes"));
-        attributeRequest.setFetch(new Fetch("AllowedValues", "ElementName", "Name"));
-        QueryResponse attributeQueryResponse = restApi.query(attributeRequest);
-        if (attributeQueryResponse.wasSuccessful()) {
-            for (JsonElement tempFieldQueryResponse: attributeQueryResponse.getResults()) {
-                String fieldName = tempFieldQueryResponse.getAsJsonObject().get("Name").getAsString();
-                if (fieldName.equals(field)) {
-                    JsonObject allowedValuesJsonObject = tempFieldQueryResponse.getAsJsonObject();
-                    QueryRequest allowedValuesRequest = new QueryRequest(allowedValuesJsonObject.getAsJsonObject("AllowedValues"));
-                    allowedValuesRequest.setFetch(new Fetch("StringValue"));
-                    QueryResponse allowedValuesResponse = restApi.query(allowedValuesRequest);
-                    if (allowedValuesResponse.wasSuccessful()) {
-                        for (JsonElement tempAllowedValuesReponse: allowedValuesResponse.getResults()) {
-                            JsonObject allowedAttributeValuesJsonObject = tempAllowedValuesReponse.getAsJsonObject();
-                            if (value.equals(allowedAttributeValuesJsonObject.get("StringValue").toString())) {
-                                found = true;
-                                // Early break out of the loop if we find the value
-                                break;
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest typeDefRequest = new QueryRequest("TypeDefinition");
+            typeDefRequest.setWorkspace(workspaceRef);
+            typeDefRequest.setFetch(new Fetch("ObjectID", "Attributes"));
+            typeDefRequest.setQueryFilter(new QueryFilter("Name", "=", "Defect"));
+            QueryResponse typeDefQueryResponse = restApi.query(typeDefRequest);
+            JsonObject typeDefJsonObject = typeDefQueryResponse.getResults().get(0).getAsJsonObject();
+            QueryRequest attributeRequest = new QueryRequest(typeDefJsonObject.getAsJsonObject("Attributes"));
+            attributeRequest.setFetch(new Fetch("AllowedValues", "ElementName", "Name"));
+            QueryResponse attributeQueryResponse = restApi.query(attributeRequest);
+            if (attributeQueryResponse.wasSuccessful()) {
+                for (JsonElement tempFieldQueryResponse: attributeQueryResponse.getResults()) {
+                    String fieldName = tempFieldQueryResponse.getAsJsonObject().get("Name").getAsString();
+                    if (fieldName.equals(field)) {
+                        JsonObject allowedValuesJsonObject = tempFieldQueryResponse.getAsJsonObject();
+                        QueryRequest allowedValuesRequest = new QueryRequest(allowedValuesJsonObject.getAsJsonObject("AllowedValues"));
+                        allowedValuesRequest.setFetch(new Fetch("StringValue"));
+                        QueryResponse allowedValuesResponse = restApi.query(allowedValuesRequest);
+                        if (allowedValuesResponse.wasSuccessful()) {
+                            for (JsonElement tempAllowedValuesReponse: allowedValuesResponse.getResults()) {
+                                JsonObject allowedAttributeValuesJsonObject = tempAllowedValuesReponse.getAsJsonObject();
+                                if (value.equals(allowedAttributeValuesJsonObject.get("StringValue").toString())) {
+                                    found = true;
+                                    // Early break out of the loop if we find the value
+                                    break;
+                                }
                             }
+                        } else {
+                            throw new IOException("Unable to retrieve values for field \"" + field + "\".");
                         }
-                    } else {
-                        restApi.close();
-                        throw new IOException("Unable to retrieve values for field \"" + field + "\".");
+                        // To short change the outside for loop once we have found the field.
+                        break;
                     }
-                    // To short change the outside for loop once we have found the field.
-                    break;
                 }
+            } else {
+                throw new IOException("Unable to find the field \"" + field + "\".");
             }
-        } else {
+        } finally {
+            // Ensure that we always hand the connection back to the pool.
             restApi.close();
-            throw new IOException("Unable to find the field \"" + field + "\".");
         }
-        restApi.close();
         return found;
     }
 
@@ -120,30 +135,36 @@ public class RallyUtils {
  * 
  * @param workspaceRef Rally workspace ref
  * @param projectName
- * @param RallyAPIKey
+ * @param rally - pool of Rally clients for the API key in use.
  * @return Rally project reference if found, null if nothing found.
- * @throws URISyntaxException
  * @throws IOException
  */
-    public static String getProjectReference(String workspaceRef, String projectName, String RallyAPIKey) throws URISyntaxException, IOException {
+    public static String getProjectReference(String workspaceRef, String projectName, RallyClientPool rally) throws IOException {
         String projectRef = null;
-        RallyRestApi restApi = new RallyRestApi(new URI(RALLY_URL), RallyAPIKey);
-        QueryRequest projectRequest = new QueryRequest("Project");
-        projectRequest.setFetch(new Fetch ("Name", "_ref"));
-        projectRequest.setWorkspace(workspaceRef);
-        QueryResponse projectQueryResponse = restApi.query(projectRequest);
-        // If the projectQueryResponse was not successful then just return a null referece. Needs to be checked on the calling platform.
-        if (projectQueryResponse.wasSuccessful())
-            for (JsonElement tempJson : projectQueryResponse.getResults()) {
-                if (projectName.equalsIgnoreCase(tempJson.getAsJsonObject().get("Name").getAsString())) {
-                    String fullProjectReferece = tempJson.getAsJsonObject().get("_ref").getAsString();
-                    // Grab
-                    projectRef = fullProjectReferece.substring(fullProjectReferece.indexOf("project") - 1).replace("\"", "");
-                    // Short change the loop once we have found our project
-                    break;
+        RallyRestApi restApi = rally.borrow();
+        try {
+            // Rally compares strings without regard to case so only same named projects come back.
+            QueryRequest projectRequest = RallyQuery.of("Project")
+                    .inWorkspace(workspaceRef)
+                    .where("Name", "=", projectName)
+                    .fetch("Name")
+                    .limit(RallyQuery.MAX_PAGE_SIZE)
+                    .build();
+            QueryResponse projectQueryResponse = restApi.query(projectRequest);
+            // If the projectQueryResponse was not successful then just return a null referece. Needs to be checked on the calling platform.
+            if (projectQueryResponse.wasSuccessful())
+                for (JsonElement tempJson : projectQueryResponse.getResults()) {
+                    if (projectName.equalsIgnoreCase(tempJson.getAsJsonObject().get("Name").getAsString())) {
+                        String fullProjectReferece = tempJson.getAsJsonObject().get("_ref").getAsString();
+                        // Grab
+                        projectRef = fullProjectReferece.substring(fullProjectReferece.indexOf("project") - 1).replace("\"", "");
+                        // Short change the loop once we have found our project
+                        break;
+                    }
                 }
-            }
-        restApi.close();
+        } finally {
+            restApi.close();
+        }
         return projectRef;
     }
 
@@ -153,79 +174,327 @@ public class RallyUtils {
      * @param object - Example "Defect"
      * @param field - Example "Found In Version"
      * @param workspaceRef
-     * @param RallyAPIKey
+     * @param rally - pool of Rally clients for the API key in use.
      * @return ArrayList<String> of allowable values - names only
-     * @throws URISyntaxException
      * @throws IOException - Overloaded to allow for failed queries.
      */
-    public static ArrayList<String> allowedFieldValues(String object, String field, String workspaceRef, String RallyAPIKey) throws URISyntaxException, IOException {
-        ArrayList<String> allowedValues = new ArrayList<String>();
-        RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RallyAPIKey);
-        QueryRequest typeDefRequest = new QueryRequest("TypeDefinition");
-        typeDefRequest.setWorkspace(workspaceRef);
-        typeDefRequest.setFetch(new Fetch("ObjectID", "Attributes"));
-        typeDefRequest.setQueryFilter(new QueryFilter("Name", "=", object));
-        QueryResponse typeDefQueryResponse = restApi.query(typeDefRequest);
-        if (typeDefQueryResponse.wasSuccessful()) {
+    public static ArrayList<String> allowedFieldValues(String object, String field, String workspaceRef, RallyClientPool rally) throws IOException {
+        DefectMetadata metadata = loadAllowedFieldValues(object, Collections.singleton(field), workspaceRef, rally, null);
+        return new ArrayList<String>(metadata.getAllowedValues(field));
+    }
+
+
+    /**
+     * Reads the allowed values of several fields in one pass. The type definition and its attribute
+     * collection are read once, then the AllowedValues collections of the requested fields are
+     * read concurrently on the given executor. The calling thread reads the collections no other
+     * thread has started yet, so this also makes progress when called from the executor itself.
+     *
+     * @param object - Example "Defect"
+     * @param fields - Example "Found In Version", "Priority"
+     * @param workspaceRef
+     * @param rally - pool of Rally clients for the API key in use.
+     * @param executor - runs the AllowedValues queries, null to run them one after the other.
+     * @return snapshot of the sorted allowed values of every requested field found on the object.
+     * @throws IOException - Overloaded to allow for failed queries.
+     */
+    public static DefectMetadata loadAllowedFieldValues(String object, Collection<String> fields, String workspaceRef,
+                                                        final RallyClientPool rally, ExecutorService executor) throws IOException {
+        Set<String> wantedFields = new HashSet<String>(fields);
+        Map<String, JsonObject> allowedValuesCollections = new HashMap<String, JsonObject>();
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest typeDefRequest = RallyQuery.of("TypeDefinition")
+                    .inWorkspace(workspaceRef)
+                    .where("Name", "=", object)
+                    .fetch("Attributes")
+                    .limit(1)
+                    .build();
+            QueryResponse typeDefQueryResponse = restApi.query(typeDefRequest);
+            if (!typeDefQueryResponse.wasSuccessful() || typeDefQueryResponse.getResults().size() == 0)
+                throw new IOException("Failed TypeDefinition query of the \"" + object + "\".");
             JsonObject typeDefJsonObject = typeDefQueryResponse.getResults().get(0).getAsJsonObject();
-            QueryRequest attributeRequest = new QueryRequest(typeDefJsonObject.getAsJsonObject("Attributes"));
-            attributeRequest.setFetch(new Fetch("AllowedValues", "ElementName", "Name"));
+            // Only the attributes we were asked for are returned.
+            QueryRequest attributeRequest = RallyQuery.of(typeDefJsonObject.getAsJsonObject("Attributes"))
+                    .whereAny("Name", "=", wantedFields)
+                    .fetch("Name", "AllowedValues")
+                    .build();
             QueryResponse attributeQueryResponse = restApi.query(attributeRequest);
-            if (attributeQueryResponse.wasSuccessful()) {
-                for (JsonElement tempAttributeQueryResponseElement : attributeQueryResponse.getResults()) {
-                    if (field.equals(tempAttributeQueryResponseElement.getAsJsonObject().get("Name").getAsString())) {
-                        JsonObject allowedValuesJsonObject = tempAttributeQueryResponseElement.getAsJsonObject();
-                        QueryRequest allowedValuesRequest = new QueryRequest(allowedValuesJsonObject.getAsJsonObject("AllowedValues"));
-                        allowedValuesRequest.setFetch(new Fetch("StringValue"));
-                        QueryResponse allowedValuesResponse = restApi.query(allowedValuesRequest);
-                        if (allowedValuesResponse.wasSuccessful()) {
-                            for (JsonElement tempAllowedValuesElement : allowedValuesResponse.getResults())
-                                // Add project name to list while stripping out quotation marks
-                                allowedValues.add(tempAllowedValuesElement.getAsJsonObject().get("StringValue").toString().replace("\"", ""));
-                            // To short change the outside for loop once we have found the value.
-                            break;
-                        } else {
-                            // Ensure that we always close the restApi connection.
-                            restApi.close();
-                            throw new IOException("Failed AllowedValues query of the field \"" + field + "\".");
-                        }
-                    }
-                }
-            } else {
-                // Ensure that we always close the restApi connection.
-                restApi.close();
+            if (!attributeQueryResponse.wasSuccessful())
                 throw new IOException("Failed Attributes query of the object \"" + object + " \".");
+            // Rally matches names without regard to case so check each one again.
+            for (JsonElement tempAttributeQueryResponseElement : attributeQueryResponse.getResults()) {
+                JsonObject attribute = tempAttributeQueryResponseElement.getAsJsonObject();
+                String name = attribute.get("Name").getAsString();
+                if (wantedFields.contains(name))
+                    allowedValuesCollections.put(name, attribute.getAsJsonObject("AllowedValues"));
             }
-        } else {
-            // Ensure that we always close the restApi connection.
+        } finally {
+            // Ensure that we always hand the connection back to the pool.
+            restApi.close();
+        }
+
+        Map<String, FutureTask<List<String>>> pending = new HashMap<String, FutureTask<List<String>>>();
+        for (Map.Entry<String, JsonObject> entry : allowedValuesCollections.entrySet()) {
+            final String field = entry.getKey();
+            final JsonObject collection = entry.getValue();
+            Callable<List<String>> task = new Callable<List<String>>() {
+                public List<String> call() throws IOException {
+                    return queryAllowedValues(field, collection, rally);
+                }
+            };
+            FutureTask<List<String>> future = new FutureTask<List<String>>(task);
+            if (executor != null)
+                executor.execute(future);
+            pending.put(field, future);
+        }
+
+        Map<String, List<String>> allowedValues = new HashMap<String, List<String>>();
+        try {
+            for (Map.Entry<String, FutureTask<List<String>>> entry : pending.entrySet()) {
+                // Does nothing if a pool thread has already taken the query.
+                entry.getValue().run();
+                allowedValues.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the allowed values of \"" + object + "\".");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed AllowedValues query of the object \"" + object + "\".", e.getCause());
+        } finally {
+            // No point finishing the remaining queries if one of them has failed.
+            for (Future<List<String>> future : pending.values())
+                future.cancel(true);
+        }
+        return new DefectMetadata(workspaceRef, allowedValues);
+    }
+
+
+    /**
+     * Receives the rows of a query one page at a time, see {@link RallyUtils#queryAllPages}.
+     */
+    public interface PageHandler {
+        void page(JsonArray results) throws IOException;
+    }
+
+
+    /**
+     * Reads every page of a query. The first page gives the total number of rows, the remaining pages
+     * are then read concurrently on the executor, each with its own client, so the time taken follows
+     * the latency of a page rather than the number of pages. The calling thread reads pages no other
+     * thread has started yet, so this also makes progress when called from the executor itself.
+     *
+     * @param query - built with the page size wanted, the limit is ignored.
+     * @param rally - pool of Rally clients for the API key in use.
+     * @param executor - reads the pages after the first, null to read them one after the other.
+     * @param timeoutMillis - time allowed for all the pages, 0 for no limit.
+     * @param handler - given the pages in order, always on the calling thread.
+     * @return true if every page was read, false if the time ran out and only the first pages were handed over.
+     * @throws IOException if a page could not be read.
+     */
+    public static boolean queryAllPages(QueryRequest query, final RallyClientPool rally, ExecutorService executor,
+                                        long timeoutMillis, PageHandler handler) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        final int pageSize = query.getPageSize();
+        // RallyRestApi reads pages one after the other up to the limit, keep each request to a single page.
+        query.setStart(1);
+        query.setLimit(pageSize);
+        QueryResponse firstPage = queryPage(query, rally);
+        handler.page(firstPage.getResults());
+
+        List<FutureTask<JsonArray>> pending = new ArrayList<FutureTask<JsonArray>>();
+        for (int start = 1 + pageSize; start <= firstPage.getTotalResultCount(); start += pageSize) {
+            final QueryRequest pageRequest = query.clone();
+            pageRequest.setStart(start);
+            FutureTask<JsonArray> future = new FutureTask<JsonArray>(new Callable<JsonArray>() {
+                public JsonArray call() throws IOException {
+                    return queryPage(pageRequest, rally).getResults();
+                }
+            });
+            if (executor != null)
+                executor.execute(future);
+            pending.add(future);
+        }
+
+        try {
+            for (FutureTask<JsonArray> future : pending) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (timeoutMillis > 0 && remaining <= 0)
+                    return false;
+                // Does nothing if a pool thread has already taken the page.
+                future.run();
+                handler.page(timeoutMillis > 0 ? future.get(remaining, TimeUnit.MILLISECONDS) : future.get());
+            }
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the pages of " + query.toUrl());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Failed to read a page of " + query.toUrl(), e.getCause());
+        } finally {
+            // Pages nobody will look at are not worth reading.
+            for (Future<JsonArray> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    private static QueryResponse queryPage(QueryRequest pageRequest, RallyClientPool rally) throws IOException {
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryResponse response = restApi.query(pageRequest);
+            if (!response.wasSuccessful())
+                throw new IOException("Failed to read the page at " + pageRequest.getStart() + ": " + Arrays.toString(response.getErrors()));
+            return response;
+        } finally {
+            restApi.close();
+        }
+    }
+
+
+    private static List<String> queryAllowedValues(String field, JsonObject allowedValuesCollection, RallyClientPool rally) throws IOException {
+        ArrayList<String> allowedValues = new ArrayList<String>();
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest allowedValuesRequest = RallyQuery.of(allowedValuesCollection)
+                    .fetch("StringValue")
+                    .build();
+            QueryResponse allowedValuesResponse = restApi.query(allowedValuesRequest);
+            if (!allowedValuesResponse.wasSuccessful())
+                throw new IOException("Failed AllowedValues query of the field \"" + field + "\".");
+            for (JsonElement tempAllowedValuesElement : allowedValuesResponse.getResults())
+                // Add the value to the list while stripping out quotation marks
+                allowedValues.add(tempAllowedValuesElement.getAsJsonObject().get("StringValue").toString().replace("\"", ""));
+        } finally {
             restApi.close();
-            throw new IOException("Failed TypeDefinition query of the \"" + object + "\".");
         }
-        restApi.close();
         Collections.sort(allowedValues);
         return allowedValues;
     }
 
 
-    public static ArrayList<String> listAllRallyProjects(String workspaceRef, String RallyAPIKey) throws URISyntaxException, IOException {
-        ArrayList<String> projectList = new ArrayList<String>();
-        RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RallyAPIKey);
-        QueryRequest projectRequest = new QueryRequest("Project");
-        projectRequest.setFetch(new Fetch ("Name"));
-        projectRequest.setWorkspace(workspaceRef);
-        QueryResponse projectQueryResponse = restApi.query(projectRequest);
-        if (projectQueryResponse.wasSuccessful()) {
-            JsonArray projects = projectQueryResponse.getResults();
-            for (JsonElement tempJson : projects)
-                // Add project name to list while stripping out quotation marks
-                projectList.add(tempJson.getAsJsonObject().get("Name").toString().replace("\"", ""));
-            Collections.sort(projectList);
-        } else {
-            // Ensure that we always close the restApi connection.
+/**
+ * 
+ * @param userName - Rally user id, e.g. "pebuildrelease@vce.com"
+ * @param rally - pool of Rally clients for the API key in use.
+ * @return Rally user reference if found, null if there is no such user.
+ * @throws IOException
+ */
+    public static String getUserReference(String userName, RallyClientPool rally) throws IOException {
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest userInfo = RallyQuery.of("user")
+                    .where("UserName", "=", userName)
+                    .fetch("UserName")
+                    .limit(1)
+                    .build();
+            QueryResponse queryresponse = restApi.query(userInfo);
+            if (!queryresponse.wasSuccessful())
+                throw new IOException("Unable to query Rally for username " + userName);
+            if (queryresponse.getResults().size() == 0)
+                return null;
+            return queryresponse.getResults().get(0).getAsJsonObject().get("_ref").getAsString();
+        } finally {
+            restApi.close();
+        }
+    }
+
+
+/**
+ * Looks up several users with a single query, e.g. to refresh the cached user references.
+ * @param userNames - Rally user ids, a few dozen at most so that the query fits in a URL.
+ * @param rally - pool of Rally clients for the API key in use.
+ * @return Rally user reference by user id, users Rally does not know are left out.
+ * @throws IOException
+ */
+    public static Map<String, String> getUserReferences(Collection<String> userNames, RallyClientPool rally) throws IOException {
+        Map<String, String> userRefs = new HashMap<String, String>();
+        if (userNames.isEmpty())
+            return userRefs;
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest userInfo = RallyQuery.of("user")
+                    .whereAny("UserName", "=", userNames)
+                    .fetch("UserName")
+                    .build();
+            QueryResponse queryresponse = restApi.query(userInfo);
+            if (!queryresponse.wasSuccessful())
+                throw new IOException("Unable to query Rally for " + userNames.size() + " usernames");
+            // Rally compares user names regardless of case.
+            Map<String, String> found = new HashMap<String, String>();
+            for (JsonElement user : queryresponse.getResults())
+                found.put(user.getAsJsonObject().get("UserName").getAsString().toLowerCase(Locale.ENGLISH),
+                        user.getAsJsonObject().get("_ref").getAsString());
+            for (String userName : userNames) {
+                String userRef = found.get(userName.toLowerCase(Locale.ENGLISH));
+                if (userRef != null)
+                    userRefs.put(userName, userRef);
+            }
+            return userRefs;
+        } finally {
+            restApi.close();
+        }
+    }
+
+
+/**
+ * 
+ * @param workspaceRef Rally workspace ref
+ * @param tagName - Example "BRM_Build_Failure"
+ * @param rally - pool of Rally clients for the API key in use.
+ * @return Rally tag reference if found, null if there is no such tag.
+ * @throws IOException
+ */
+    public static String getTagReference(String workspaceRef, String tagName, RallyClientPool rally) throws IOException {
+        RallyRestApi restApi = rally.borrow();
+        try {
+            QueryRequest tagInfo = RallyQuery.of("Tag")
+                    .inWorkspace(workspaceRef)
+                    .where("Name", "=", tagName)
+                    .fetch("Name")
+                    .limit(1)
+                    .build();
+            QueryResponse queryresponse = restApi.query(tagInfo);
+            if (!queryresponse.wasSuccessful())
+                throw new IOException("Unable to query Rally for tag " + tagName);
+            if (queryresponse.getResults().size() == 0)
+                return null;
+            return queryresponse.getResults().get(0).getAsJsonObject().get("_ref").getAsString();
+        } finally {
             restApi.close();
-            throw new IOException("Failed to query the proejcts for the workspace \"" + workspaceRef + "\".");
         }
-        restApi.close();
+    }
+
+
+    public static ArrayList<String> listAllRallyProjects(String workspaceRef, RallyClientPool rally) throws IOException {
+        return listAllRallyProjects(workspaceRef, rally, null);
+    }
+
+    /**
+     * @param executor - reads the pages after the first concurrently, null to read them one after the other.
+     * @return the names of all projects of the workspace, sorted.
+     */
+    public static ArrayList<String> listAllRallyProjects(String workspaceRef, RallyClientPool rally, ExecutorService executor) throws IOException {
+        final ArrayList<String> projectList = new ArrayList<String>();
+        QueryRequest projectRequest = RallyQuery.of("Project")
+                .inWorkspace(workspaceRef)
+                .fetch("Name")
+                .pageSize(RallyQuery.MAX_PAGE_SIZE)
+                .build();
+        queryAllPages(projectRequest, rally, executor, 0, new PageHandler() {
+            public void page(JsonArray projects) {
+                projectList.ensureCapacity(projectList.size() + projects.size());
+                for (JsonElement tempJson : projects)
+                    // Add project name to list while stripping out quotation marks
+                    projectList.add(tempJson.getAsJsonObject().get("Name").toString().replace("\"", ""));
+            }
+        });
+        Collections.sort(projectList);
         return projectList;
     }
 }
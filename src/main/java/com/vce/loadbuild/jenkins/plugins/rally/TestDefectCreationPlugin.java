@@ -207,19 +207,20 @@ public class TestDefectCreationPlugin {
         //Create and configure a new instance of RallyRestApi
         RallyRestApi restApi = new RallyRestApi(new URI(RallyUtils.RALLY_URL), RALLY_API_KEY);
         restApi.setApplicationName("TestDefectCreation");
+        RallyClientPool rally = new RallyClientPool(new URI(RallyUtils.RALLY_URL), RALLY_API_KEY);
         String user_ref = null;
 
         try {
 //            listAllRallyProjects();
 //            listAllRallyWorkspaces();
 //              String test_string = getWorkspaceReference("VCE");
-            String workspaceRef = RallyUtils.getWorkspaceReference("VCE", RALLY_API_KEY);
+            String workspaceRef = RallyUtils.getWorkspaceReference("VCE", rally);
 //            ArrayList<String> foundInVersionValues = RallyUtils.allowedValues("Defect", "Found in Version", workspaceRef, RALLY_API_KEY);
 //            Collections.sort(foundInVersionValues);
 //            for (String tempString: foundInVersionValues)
 //                System.out.println("Value " + tempString);
 //            listAllRallyProjects();
-//              String test_string = RallyUtils.getWorkspaceReference("VCE", RALLY_API_KEY);
+//              String test_string = RallyUtils.getWorkspaceReference("VCE", rally);
 //              System.out.println("test_string = " + test_string);
 //              test_string = RallyUtils.getWorkspaceReference("VEE", RALLY_API_KEY);
 //              System.out.println("test_string = " + test_string);
@@ -234,10 +235,10 @@ public class TestDefectCreationPlugin {
 //                System.out.println("user_ref = " + user_ref);
 ////                user = results.getAsJsonObject();
 //            }
-            String newWorkspaceRef = RallyUtils.getWorkspaceReference("VCE", RALLY_API_KEY);
+            String newWorkspaceRef = RallyUtils.getWorkspaceReference("VCE", rally);
             System.out.println("newWorkspaceRef = " + newWorkspaceRef);
             System.out.println("RALLY_API_KEY   = " + RALLY_API_KEY);
-            ArrayList<String> allowedValues = RallyUtils.allowedFieldValues("Defect", "Found in Version", newWorkspaceRef, RALLY_API_KEY);
+            ArrayList<String> allowedValues = RallyUtils.allowedFieldValues("Defect", "Found in Version", newWorkspaceRef, rally);
             Integer size = new Integer(allowedValues.size());
             System.out.println ("allowedValues size = " + size.toString());
             for (String tempString: allowedValues)
@@ -320,6 +321,7 @@ public class TestDefectCreationPlugin {
         } finally {
             //Release all resources
             restApi.close();
+            rally.close();
         }
     }
 }
@@ -0,0 +1,224 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+
+/**
+ * Small thread safe cache whose entries expire after a fixed time to live.
+ * When the cache holds more than its maximum number of entries the least
+ * recently used entry is evicted.
+ * <p>
+ * {@link #get(Object, Callable)} loads missing values so that callers missing the
+ * same key at the same time share a single load, {@link #get(Object, Callable, Executor)}
+ * in addition keeps serving an expired value while it is reloaded in the background.
+ *
+ * @author Frank Rouse
+ */
+public class TtlCache<K, V> {
+
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+    // Loads in progress, guarded by this like the entries.
+    private final Map<K, FutureTask<V>> loading = new HashMap<K, FutureTask<V>>();
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public TtlCache(long ttlMillis, final int maxEntries) {
+        this.ttlMillis  = ttlMillis;
+        this.maxEntries = maxEntries;
+        // Access ordered so that the eldest entry is always the least recently used one.
+        this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > TtlCache.this.maxEntries;
+            }
+        };
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the cached value or null if there is none or it has expired.
+     */
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = entries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            entries.remove(key);
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    /**
+     * Returns the cached value, loading it if needed. Only the first caller to miss a key runs
+     * the loader, the others wait for its result.
+     * @param loader - returns the value, or null if there is none, which is not cached.
+     * @throws IOException thrown by the loader, or if the wait was interrupted.
+     */
+    public V get(K key, Callable<V> loader) throws IOException {
+        FutureTask<V> task;
+        boolean loads = false;
+        synchronized (this) {
+            V value = get(key);
+            if (value != null)
+                return value;
+            task = loading.get(key);
+            if (task == null) {
+                task = new FutureTask<V>(loader);
+                loading.put(key, task);
+                loads = true;
+            }
+        }
+        if (loads)
+            task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading " + key);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        } finally {
+            if (loads)
+                loaded(key, task);
+        }
+    }
+
+    /**
+     * Stale while revalidate: an expired value is still returned, and reloaded in the background
+     * so that a slow Rally never holds up the caller. Only a key never loaded before waits for the loader.
+     * @throws IOException thrown by the loader if the key had no value at all.
+     */
+    public V get(final K key, Callable<V> loader, Executor executor) throws IOException {
+        synchronized (this) {
+            CacheEntry<V> entry = entries.get(key);
+            if (entry != null) {
+                if (entry.isExpired(System.currentTimeMillis()) && !loading.containsKey(key)) {
+                    final FutureTask<V> task = new FutureTask<V>(loader);
+                    loading.put(key, task);
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                task.run();
+                                loaded(key, task);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Try again with the next caller.
+                        loading.remove(key);
+                    }
+                }
+                hitCount++;
+                return entry.value;
+            }
+        }
+        return get(key, loader);
+    }
+
+    private synchronized void loaded(K key, FutureTask<V> task) {
+        // Skipped if the key was invalidated while loading, the value may predate the invalidation.
+        if (loading.get(key) != task)
+            return;
+        loading.remove(key);
+        try {
+            V value = task.get();
+            if (value != null)
+                put(key, value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Nothing to cache, the caller gets the failure.
+        }
+    }
+
+    public synchronized void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    /**
+     * Caches a value for a different time than the default, e.g. a short lived negative entry.
+     */
+    public synchronized void put(K key, V value, long entryTtlMillis) {
+        entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis() + entryTtlMillis));
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+        loading.remove(key);
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        loading.clear();
+    }
+
+    /**
+     * @return the keys currently cached, expired or not.
+     */
+    public synchronized List<K> keys() {
+        return new ArrayList<K>(entries.keySet());
+    }
+
+    /**
+     * @return lookups answered from the cache, stale answers included.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    private static final class CacheEntry<V> {
+        private final V value;
+        private final long expiresAt;
+
+        CacheEntry(V value, long expiresAt) {
+            this.value     = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+
+import hudson.console.ConsoleNote;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * The tail of plain and compressed logs, cut by lines and by bytes.
+ *
+ * @author Frank Rouse
+ */
+public class ConsoleLogTailTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+    private File log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("console", "");
+        dir.delete();
+        dir.mkdir();
+        log = new File(dir, "log");
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void missingLogIsEmpty() throws IOException {
+        assertEquals("", ConsoleLogTail.read(log, 10, 1000, UTF8));
+    }
+
+    @Test
+    public void lastLinesOfAPlainLog() throws IOException {
+        write(log, lines(1, 100), false);
+        assertEquals(lines(98, 100).trim(), ConsoleLogTail.read(log, 3, 100000, UTF8));
+    }
+
+    @Test
+    public void logShorterThanTheLimitsIsReadWhole() throws IOException {
+        write(log, "first\nsecond", false);
+        assertEquals("first\nsecond", ConsoleLogTail.read(log, 10, 1000, UTF8));
+    }
+
+    @Test
+    public void lineCutAtTheByteLimitIsDropped() throws IOException {
+        // Every line is "line NNN\n", 9 bytes: 20 bytes hold 2 whole lines and 2 bytes of a third.
+        write(log, lines(100, 199), false);
+        assertEquals("line 198\nline 199", ConsoleLogTail.read(log, 10, 20, UTF8));
+    }
+
+    @Test
+    public void lineStartingExactlyAtTheByteLimitIsKept() throws IOException {
+        write(log, lines(100, 199), false);
+        assertEquals("line 197\nline 198\nline 199", ConsoleLogTail.read(log, 10, 27, UTF8));
+    }
+
+    @Test
+    public void consoleNotesAreRemoved() throws IOException {
+        String note = ConsoleNote.PREAMBLE_STR + "H4sIAAAAAAAAAAAAA" + ConsoleNote.POSTAMBLE_STR;
+        write(log, "Started by " + note + "admin\n" + note + "Finished: FAILURE\n", false);
+        assertEquals("Started by admin\nFinished: FAILURE", ConsoleLogTail.read(log, 10, 1000, UTF8));
+    }
+
+    @Test
+    public void compressedLogGivesTheSameTailAsThePlainOne() throws IOException {
+        String content = lines(1000, 9999);
+        File plain = new File(dir, "plain");
+        write(plain, content, false);
+        write(new File(log.getPath() + ".gz"), content, true);
+        // Limits that fall on and between line ends, smaller than the log and larger.
+        int[] maxBytes = { 1, 9, 10, 100, 4096, 65536, 1000000 };
+        for (int bytes : maxBytes)
+            for (int maxLines = 1; maxLines <= 200; maxLines *= 5)
+                assertEquals(maxLines + " lines " + bytes + " bytes",
+                        ConsoleLogTail.read(plain, maxLines, bytes, UTF8), ConsoleLogTail.read(log, maxLines, bytes, UTF8));
+    }
+
+    @Test
+    public void compressedLogWrapsTheRingBuffer() throws IOException {
+        // 9 000 lines of 9 bytes through a ring of 50 bytes: the tail ends part way round it.
+        write(new File(log.getPath() + ".gz"), lines(1000, 9999), true);
+        assertEquals("line 9995\nline 9996\nline 9997\nline 9998\nline 9999", ConsoleLogTail.read(log, 10, 50, UTF8));
+    }
+
+    @Test
+    public void htmlIsEscaped() {
+        assertEquals("<p>Last lines of the console log:</p><pre>a &lt;b&gt; &amp; &quot;c&quot;</pre>",
+                ConsoleLogTail.toHtml("a <b> & \"c\""));
+        assertEquals("", ConsoleLogTail.toHtml(""));
+    }
+
+    private static String lines(int first, int last) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = first; i <= last; i++)
+            lines.append("line ").append(i).append('\n');
+        return lines.toString();
+    }
+
+    private static void write(File file, String content, boolean compressed) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (compressed)
+            out = new GZIPOutputStream(out);
+        try {
+            out.write(content.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.util.FormValidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+
+/**
+ * Parsing the rules, and matching them against logs the way the automaton has to: through
+ * failure links, regardless of ASCII case, across buffer boundaries and in rule order.
+ *
+ * @author Frank Rouse
+ */
+public class FailureScannerTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // The size of the buffers the log is read in.
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Test
+    public void rulesAreParsed() {
+        FailureScanner scanner = FailureScanner.parse(
+                "# Known failures\n"
+                + "\n"
+                + "  java.lang.OutOfMemoryError | Out of memory | Infrastructure | Environment  \r\n"
+                + "BUILD FAILED|Ant build failed\n");
+        assertEquals(2, scanner.getRules().size());
+        FailureScanner.Rule rule = scanner.getRules().get(0);
+        assertEquals("java.lang.OutOfMemoryError", rule.getPattern());
+        assertEquals("Out of memory", rule.getSignature());
+        assertEquals("Infrastructure", rule.getCategory());
+        assertEquals("Environment", rule.getType());
+        assertEquals("", scanner.getRules().get(1).getCategory());
+        assertEquals("", scanner.getRules().get(1).getType());
+    }
+
+    @Test
+    public void noRulesGiveTheEmptyScanner() throws IOException {
+        assertSame(FailureScanner.EMPTY, FailureScanner.parse(null));
+        assertSame(FailureScanner.EMPTY, FailureScanner.parse("# nothing yet\n\n"));
+        assertNull(FailureScanner.EMPTY.scan(stream("anything")));
+    }
+
+    @Test
+    public void badRulesAreRejectedWithTheirLine() {
+        String[] bad = { "no signature", "pattern|", "|signature", "a|b|c|d|e" };
+        for (String rule : bad) {
+            try {
+                FailureScanner.parse("ok|fine\n" + rule);
+                fail("Expected " + rule + " to be rejected");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2 "));
+            }
+        }
+    }
+
+    @Test
+    public void patternsOverTheLimitAreRejectedWithTheirLine() throws IOException {
+        StringBuilder half = new StringBuilder();
+        for (int i = 0; i < FailureScanner.MAX_PATTERN_BYTES / 2; i++)
+            half.append((char) ('a' + i % 26));
+        FailureScanner scanner = FailureScanner.parse(half + "|first\n" + half + "|second");
+        assertEquals("first", scanner.scan(stream("log " + half.toString().toUpperCase())).getSignature());
+        try {
+            FailureScanner.parse(half + "|first\n" + half + "|second\nx|third");
+            fail("Expected the third rule to be rejected");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3 "));
+        }
+    }
+
+    @Test
+    public void configurationCheckRejectsBadRules() {
+        FormValidation bad = CreateRallyDefectDescriptor.checkFailureSignatures("ok|fine\nno signature");
+        assertEquals(FormValidation.Kind.ERROR, bad.kind);
+        assertTrue(bad.getMessage(), bad.getMessage().startsWith("Line 2 "));
+        assertEquals(FormValidation.Kind.OK, CreateRallyDefectDescriptor.checkFailureSignatures("ok|fine\nalso|fine").kind);
+        assertEquals(FormValidation.Kind.OK, CreateRallyDefectDescriptor.checkFailureSignatures("").kind);
+    }
+
+    @Test
+    public void noMatchIsNull() throws IOException {
+        assertNull(FailureScanner.parse("BUILD FAILED|Ant").scan(stream("BUILD SUCCESSFUL")));
+    }
+
+    @Test
+    public void matchFollowsTheFailureLink() throws IOException {
+        // After "abc" the automaton is deep in "abce", the "d" has to take it over to "bcd".
+        FailureScanner scanner = FailureScanner.parse("abce|ABCE\nbcd|BCD");
+        assertEquals("BCD", scanner.scan(stream("xxabcdxx")).getSignature());
+        // Same again where the prefix overlaps itself.
+        assertEquals("AAB", FailureScanner.parse("aab|AAB").scan(stream("aaaab")).getSignature());
+    }
+
+    @Test
+    public void patternInsideAnotherIsFoundThroughItsFailureLink() throws IOException {
+        // "abc" is only ever reached as a whole, "c" has to be picked up from its suffix.
+        FailureScanner scanner = FailureScanner.parse("c|C\nabc|ABC");
+        assertEquals("C", scanner.scan(stream("abc")).getSignature());
+    }
+
+    @Test
+    public void asciiCaseIsIgnored() throws IOException {
+        FailureScanner scanner = FailureScanner.parse("OutOfMemoryError|Out of memory");
+        assertEquals("Out of memory", scanner.scan(stream("java.lang.OUTOFMEMORYERROR: Java heap space")).getSignature());
+        assertEquals("Out of memory", scanner.scan(stream("java.lang.outofmemoryerror")).getSignature());
+    }
+
+    @Test
+    public void onlyAsciiCaseIsFolded() throws IOException {
+        FailureScanner scanner = FailureScanner.parse("Pr\u00fcfung fehlgeschlagen|German");
+        assertEquals("German", scanner.scan(stream("PR\u00fcFUNG FEHLGESCHLAGEN")).getSignature());
+        assertNull(scanner.scan(stream("PR\u00dcFUNG FEHLGESCHLAGEN")));
+    }
+
+    @Test
+    public void higherRuleWinsWhereverItIs() throws IOException {
+        FailureScanner scanner = FailureScanner.parse("Finished: ABORTED|Aborted\nerror:|Compile error");
+        assertEquals("Aborted", scanner.scan(stream("error: x\nerror: y\nFinished: ABORTED\n")).getSignature());
+        assertEquals("Compile error", scanner.scan(stream("error: x\nFinished: FAILURE\n")).getSignature());
+    }
+
+    @Test
+    public void sameRuleTwiceKeepsTheFirst() throws IOException {
+        FailureScanner scanner = FailureScanner.parse("BUILD FAILED|First\nbuild failed|Second");
+        assertEquals("First", scanner.scan(stream("BUILD FAILED")).getSignature());
+    }
+
+    @Test
+    public void matchAcrossBufferBoundary() throws IOException {
+        String pattern = "BUILD FAILED";
+        FailureScanner scanner = FailureScanner.parse(pattern + "|Ant");
+        for (int split = 1; split < pattern.length(); split++) {
+            byte[] log = filler(BUFFER_SIZE - split, pattern);
+            assertEquals("split after " + split, "Ant", scanner.scan(new ByteArrayInputStream(log)).getSignature());
+        }
+    }
+
+    @Test
+    public void compressedLogIsScanned() throws IOException {
+        File log = File.createTempFile("log", "");
+        File gz = new File(log.getPath() + ".gz");
+        log.delete();
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(gz));
+            try {
+                out.write(filler(3 * BUFFER_SIZE - 4, "BUILD FAILED"));
+            } finally {
+                out.close();
+            }
+            // The plain log is gone, the scanner finds the compressed one.
+            assertEquals("Ant", FailureScanner.parse("BUILD FAILED|Ant").scan(log).getSignature());
+        } finally {
+            gz.delete();
+        }
+    }
+
+    private static byte[] filler(int before, String text) {
+        byte[] pattern = text.getBytes(UTF8);
+        byte[] log = new byte[before + pattern.length + 100];
+        Arrays.fill(log, (byte) 'x');
+        System.arraycopy(pattern, 0, log, before, pattern.length);
+        return log;
+    }
+
+    private static ByteArrayInputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(UTF8));
+    }
+}
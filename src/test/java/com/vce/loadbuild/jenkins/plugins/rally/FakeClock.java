@@ -0,0 +1,23 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A clock that only moves when told to.
+ *
+ * @author Frank Rouse
+ */
+class FakeClock extends Clock {
+
+    private long now = 0;
+
+    @Override
+    synchronized long nanoTime() {
+        return now;
+    }
+
+    synchronized void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+}
@@ -0,0 +1,138 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vce.loadbuild.jenkins.plugins.rally.RallyCircuitBreaker.OpenException;
+import com.vce.loadbuild.jenkins.plugins.rally.RallyCircuitBreaker.State;
+
+
+/**
+ * Opening after consecutive failures, the single trial request once open, and closing or
+ * opening again on its outcome.
+ *
+ * @author Frank Rouse
+ */
+public class RallyCircuitBreakerTest {
+
+    private static final IOException TIMEOUT = new IOException("connect timed out");
+
+    private final FakeClock clock = new FakeClock();
+    private RallyCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new RallyCircuitBreaker(clock);
+        breaker.configure(3, 30);
+    }
+
+    @Test
+    public void opensAfterThresholdConsecutiveFailures() throws OpenException {
+        failRequests(2);
+        assertEquals(State.CLOSED, breaker.getState());
+        failRequests(1);
+        assertEquals(State.OPEN, breaker.getState());
+        assertRefused();
+    }
+
+    @Test
+    public void successResetsTheCount() throws OpenException {
+        failRequests(2);
+        breaker.before();
+        breaker.succeeded();
+        failRequests(2);
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void staysOpenUntilTheOpenTimeHasPassed() throws OpenException {
+        failRequests(3);
+        clock.advance(TimeUnit.SECONDS.toMillis(30) - 1);
+        assertRefused();
+        clock.advance(1);
+        breaker.before();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenLetsASingleTrialThrough() throws OpenException {
+        failRequests(3);
+        clock.advance(TimeUnit.SECONDS.toMillis(30));
+        breaker.before();
+        assertRefused();
+        assertRefused();
+    }
+
+    @Test
+    public void successfulTrialCloses() throws OpenException {
+        failRequests(3);
+        clock.advance(TimeUnit.SECONDS.toMillis(30));
+        breaker.before();
+        breaker.succeeded();
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.before();
+        breaker.before();
+    }
+
+    @Test
+    public void failedTrialOpensAgain() throws OpenException {
+        failRequests(3);
+        clock.advance(TimeUnit.SECONDS.toMillis(30));
+        breaker.before();
+        breaker.failed(TIMEOUT);
+        assertEquals(State.OPEN, breaker.getState());
+        clock.advance(TimeUnit.SECONDS.toMillis(29));
+        assertRefused();
+        clock.advance(TimeUnit.SECONDS.toMillis(1));
+        breaker.before();
+    }
+
+    @Test
+    public void abandonedTrialLetsAnotherThrough() throws OpenException {
+        failRequests(3);
+        clock.advance(TimeUnit.SECONDS.toMillis(30));
+        breaker.before();
+        breaker.abandoned();
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.before();
+        assertRefused();
+    }
+
+    @Test
+    public void zeroThresholdNeverOpens() throws OpenException {
+        breaker.configure(0, 30);
+        failRequests(50);
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.before();
+    }
+
+    @Test
+    public void disablingClosesAnOpenBreaker() throws OpenException {
+        failRequests(3);
+        breaker.configure(0, 30);
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.before();
+    }
+
+    private void failRequests(int times) throws OpenException {
+        for (int i = 0; i < times; i++) {
+            breaker.before();
+            breaker.failed(TIMEOUT);
+        }
+    }
+
+    private void assertRefused() {
+        try {
+            breaker.before();
+            fail("Expected the breaker to refuse the request");
+        } catch (OpenException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.rallydev.rest.RallyRestApi;
+
+
+/**
+ * Lending and handing back clients. No request is sent, so no server is needed.
+ *
+ * @author Frank Rouse
+ */
+public class RallyClientPoolTest {
+
+    private final RallyClientPool pool = new RallyClientPool(URI.create("http://127.0.0.1:1"), "test", 2,
+            TimeUnit.MINUTES.toMillis(1), new RallyRateLimiter(), new RallyCircuitBreaker());
+    private final ExecutorService otherBuild = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        otherBuild.shutdownNow();
+        pool.close();
+    }
+
+    @Test
+    public void warmClientIsReused() throws IOException {
+        RallyRestApi first = pool.borrow();
+        first.close();
+        RallyRestApi second = pool.borrow();
+        assertSame(first, second);
+        second.close();
+    }
+
+    @Test
+    public void secondCloseDoesNotHandBackAnotherBuildsLease() throws Exception {
+        RallyRestApi mine = pool.borrow();
+        mine.close();
+        RallyRestApi theirs = otherBuild.submit(new Callable<RallyRestApi>() {
+            public RallyRestApi call() throws IOException {
+                return pool.borrow();
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertSame(mine, theirs);
+
+        // Still lent to the other build, so the next borrower gets a client of its own.
+        mine.close();
+        RallyRestApi next = pool.borrow();
+        assertNotSame(theirs, next);
+        next.close();
+    }
+}
@@ -0,0 +1,209 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Creating defects against a {@link RallyStubServer}.
+ *
+ * @author Frank Rouse
+ */
+public class RallyDefectSubmitterTest {
+
+    private static final String OPEN_DEFECT_KEY = RallyOpenDefects.key("folder/job", null);
+
+    private RallyStubServer stub;
+    private RallyClientPool rally;
+    private RallyDefectSubmitter submitter;
+    private File openDefectsFile;
+    private RallyOpenDefects openDefects;
+    private RallyDefectSubmitter repeating;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final PrintStream logger = new PrintStream(log, true);
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new RallyStubServer(0, RallyStubServer.Fixtures.read(RallyUtilsTest.FIXTURES));
+        rally = new RallyClientPool(stub.getUri(), "test");
+        submitter = new RallyDefectSubmitter(new DirectResolver(rally));
+        openDefectsFile = File.createTempFile("rally-open-defects", ".xml");
+        openDefectsFile.delete();
+        openDefects = new RallyOpenDefects(openDefectsFile);
+        repeating = new RallyDefectSubmitter(new DirectResolver(rally), openDefects, null);
+    }
+
+    @After
+    public void tearDown() {
+        rally.close();
+        stub.stop();
+        openDefectsFile.delete();
+    }
+
+    @Test
+    public void defectIsCreated() throws IOException {
+        RallyDefectResult result = submitter.submit(request(RallyUtilsTest.DEFAULT_PROJECT, "pebuildrelease@vce.com"), logger);
+        assertTrue(log.toString(), result.isCreated());
+        assertTrue(result.getDefectUrl(), result.getDefectUrl().startsWith(stub.getUri() + "/#/"));
+        assertTrue(result.getDefectUrl(), result.getDefectUrl().contains("/detail/defect/"));
+        assertTrue(result.getTimings().containsKey("Create"));
+    }
+
+    @Test
+    public void unknownProjectIsRejected() throws IOException {
+        RallyDefectResult result = submitter.submit(request("No Such Project", "pebuildrelease@vce.com"), logger);
+        assertFalse(result.isCreated());
+        assertEquals(Arrays.asList("Unable to find the project No Such Project in Rally"), result.getErrors());
+    }
+
+    @Test
+    public void unknownWorkspaceIsRejected() throws IOException {
+        RallyDefectSubmitter submitter = new RallyDefectSubmitter(new DirectResolver(rally, "No Such Workspace"));
+        RallyDefectResult result = submitter.submit(request(RallyUtilsTest.DEFAULT_PROJECT, "pebuildrelease@vce.com"), logger);
+        assertFalse(result.isCreated());
+        assertEquals(Arrays.asList("Unable to find the configured workspace in Rally"), result.getErrors());
+    }
+
+    @Test
+    public void unknownUserIsRejected() throws IOException {
+        RallyDefectResult result = submitter.submit(request(RallyUtilsTest.DEFAULT_PROJECT, "nobody@vce.com"), logger);
+        assertFalse(result.isCreated());
+        assertEquals(Arrays.asList("Unable to resolve username nobody@vce.com"), result.getErrors());
+    }
+
+    @Test
+    public void repeatedFailureIsAddedToTheOpenDefect() throws IOException {
+        RallyDefectResult first = repeating.submit(repeated(42), logger);
+        RallyDefectResult second = repeating.submit(repeated(43), logger);
+        assertTrue(log.toString(), second.isCreated());
+        assertEquals(first.getDefectRef(), second.getDefectRef());
+        assertTrue(log.toString(), log.toString().contains("... Failure added to open defect"));
+        assertEquals(2, openDefects.get(OPEN_DEFECT_KEY).getOccurrences());
+    }
+
+    @Test
+    public void concurrentFailuresShareOneDefect() throws Exception {
+        stub.setLatencyMillis(100);
+        ExecutorService builds = Executors.newFixedThreadPool(2);
+        try {
+            Future<RallyDefectResult> first = builds.submit(submission(repeated(42)));
+            Future<RallyDefectResult> second = builds.submit(submission(repeated(43)));
+            assertEquals(first.get(30, TimeUnit.SECONDS).getDefectRef(), second.get(30, TimeUnit.SECONDS).getDefectRef());
+        } finally {
+            builds.shutdownNow();
+        }
+        assertEquals(2, openDefects.get(OPEN_DEFECT_KEY).getOccurrences());
+    }
+
+    @Test
+    public void closedDefectGetsANewDefect() throws IOException {
+        RallyDefectResult first = repeating.submit(repeated(42), logger);
+        stub.setDefectState(first.getDefectRef(), "Closed");
+        RallyDefectResult second = repeating.submit(repeated(43), logger);
+        assertTrue(log.toString(), second.isCreated());
+        assertFalse(first.getDefectRef().equals(second.getDefectRef()));
+        assertTrue(log.toString(), log.toString().contains("has been closed, creating a new one"));
+        assertEquals(second.getDefectRef(), openDefects.get(OPEN_DEFECT_KEY).getDefectRef());
+        assertEquals(1, openDefects.get(OPEN_DEFECT_KEY).getOccurrences());
+    }
+
+    @Test
+    public void deletedDefectGetsANewDefect() throws IOException {
+        openDefects.put(OPEN_DEFECT_KEY, new RallyOpenDefects.OpenDefect(stub.getUri() + "/slm/webservice/v2.0/defect/1",
+                stub.getUri() + "/#/1000/detail/defect/1", "folder/job#41"));
+        RallyDefectResult result = repeating.submit(repeated(42), logger);
+        assertTrue(log.toString(), result.isCreated());
+        assertTrue(log.toString(), log.toString().contains("... Unable to read open defect"));
+        assertEquals(result.getDefectRef(), openDefects.get(OPEN_DEFECT_KEY).getDefectRef());
+    }
+
+    @Test
+    public void closedDefectIsForgottenEvenIfNoNewOneCanBeCreated() throws IOException {
+        RallyDefectResult first = repeating.submit(repeated(42), logger);
+        assertNotNull(openDefects.get(OPEN_DEFECT_KEY));
+        stub.setDefectState(first.getDefectRef(), "Fixed");
+        RallyDefectResult second = repeating.submit(new RallyDefectRequest("folder/job", 43, "Build failed: folder/job #43",
+                "<p>Console</p>", "No Such Project", "pebuildrelease@vce.com", Arrays.asList("BRM_Build_Failure"),
+                Collections.<String, String>emptyMap(), OPEN_DEFECT_KEY), logger);
+        assertFalse(second.isCreated());
+        assertNull(openDefects.get(OPEN_DEFECT_KEY));
+    }
+
+    private Callable<RallyDefectResult> submission(final RallyDefectRequest request) {
+        return new Callable<RallyDefectResult>() {
+            public RallyDefectResult call() throws IOException {
+                return repeating.submit(request, logger);
+            }
+        };
+    }
+
+    private static RallyDefectRequest repeated(int buildNumber) {
+        return new RallyDefectRequest("folder/job", buildNumber, "Build failed: folder/job #" + buildNumber, "<p>Console</p>",
+                RallyUtilsTest.DEFAULT_PROJECT, "pebuildrelease@vce.com", Arrays.asList("BRM_Build_Failure"),
+                Collections.<String, String>emptyMap(), OPEN_DEFECT_KEY);
+    }
+
+    private static RallyDefectRequest request(String project, String submittedBy) {
+        List<String> tags = Arrays.asList("BRM_Build_Failure");
+        return new RallyDefectRequest("folder/job", 42, "Build failed: folder/job #42", "<p>Console</p>",
+                project, submittedBy, tags, Collections.singletonMap("Priority", "Resolve Immediately"));
+    }
+
+
+    /**
+     * Asks the stub every time, like {@link RallyUtils} on its own.
+     */
+    static class DirectResolver implements RallyReferenceResolver {
+        private final RallyClientPool rally;
+        private final String workspace;
+
+        DirectResolver(RallyClientPool rally) {
+            this(rally, RallyUtilsTest.WORKSPACE);
+        }
+
+        DirectResolver(RallyClientPool rally, String workspace) {
+            this.rally = rally;
+            this.workspace = workspace;
+        }
+
+        public RallyClientPool getRallyClientPool() {
+            return rally;
+        }
+
+        public String getWorkspaceReference() throws IOException {
+            return RallyUtils.getWorkspaceReference(workspace, rally);
+        }
+
+        public String getProjectReference(String workspaceRef, String projectName) throws IOException {
+            return RallyUtils.getProjectReference(workspaceRef, projectName, rally);
+        }
+
+        public String getUserReference(String userName) throws IOException {
+            return RallyUtils.getUserReference(userName, rally);
+        }
+
+        public String getTagReference(String workspaceRef, String tagName) throws IOException {
+            return RallyUtils.getTagReference(workspaceRef, tagName, rally);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * The rate, the requests in flight, the pause after a 429 and the priority of writes.
+ * Calls with a timeout of 0 either get their turn straight away or fail, so the tests
+ * move a {@link FakeClock} rather than wait.
+ *
+ * @author Frank Rouse
+ */
+public class RallyRateLimiterTest {
+
+    private final FakeClock clock = new FakeClock();
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void unconfiguredLimiterLetsEverythingThrough() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter();
+        for (int i = 0; i < 100; i++)
+            limiter.acquire(false, 0);
+        assertEquals(100, limiter.getInFlight());
+    }
+
+    @Test
+    public void rateIsHeldToTheBucket() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(2, 0, clock);
+        limiter.acquire(true, 0);
+        limiter.acquire(true, 0);
+        assertRefused(limiter, true);
+        clock.advance(499);
+        assertRefused(limiter, true);
+        clock.advance(1);
+        limiter.acquire(true, 0);
+    }
+
+    @Test
+    public void idleTimeDoesNotBuildUpMoreThanOneSecondOfRequests() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(2, 0, clock);
+        clock.advance(TimeUnit.MINUTES.toMillis(1));
+        limiter.acquire(false, 0);
+        limiter.acquire(false, 0);
+        assertRefused(limiter, false);
+    }
+
+    @Test
+    public void requestsInFlightAreCapped() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(0, 2, clock);
+        limiter.acquire(true, 0);
+        limiter.acquire(false, 0);
+        assertRefused(limiter, true);
+        limiter.release();
+        limiter.acquire(true, 0);
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void retryAfterHoldsEveryRequestBack() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(0, 0, clock);
+        limiter.throttled(5);
+        assertRefused(limiter, true);
+        assertRefused(limiter, false);
+        clock.advance(4999);
+        assertRefused(limiter, true);
+        clock.advance(1);
+        limiter.acquire(true, 0);
+        limiter.acquire(false, 0);
+    }
+
+    @Test
+    public void throttleWithoutRetryAfterPausesForTheConfiguredTime() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(0, 0, clock);
+        limiter.configure(0, 0, 30);
+        limiter.throttled(-1);
+        clock.advance(TimeUnit.SECONDS.toMillis(30) - 1);
+        assertRefused(limiter, false);
+        clock.advance(1);
+        limiter.acquire(false, 0);
+    }
+
+    @Test
+    public void shorterRetryAfterDoesNotCutAPauseShort() throws IOException {
+        RallyRateLimiter limiter = new RallyRateLimiter(0, 0, clock);
+        limiter.throttled(10);
+        limiter.throttled(1);
+        clock.advance(TimeUnit.SECONDS.toMillis(5));
+        assertRefused(limiter, true);
+    }
+
+    @Test
+    public void waitingWriteGoesBeforeWaitingRead() throws Exception {
+        // Real time here, the waiting callers are woken by release().
+        final RallyRateLimiter limiter = new RallyRateLimiter(0, 1);
+        limiter.acquire(false, 0);
+        Future<Void> read = callers.submit(acquirer(limiter, false));
+        waitFor(limiter, 0, 1);
+        Future<Void> write = callers.submit(acquirer(limiter, true));
+        waitFor(limiter, 1, 1);
+
+        limiter.release();
+        write.get(10, TimeUnit.SECONDS);
+        // The read came first but still waits.
+        assertEquals(1, limiter.getWaitingReads());
+        assertEquals(1, limiter.getInFlight());
+
+        limiter.release();
+        read.get(10, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getWaitingReads());
+    }
+
+    @Test
+    public void readIsRefusedWhileAWriteWaits() throws Exception {
+        RallyRateLimiter limiter = new RallyRateLimiter(0, 1);
+        limiter.acquire(true, 0);
+        Future<Void> write = callers.submit(acquirer(limiter, true));
+        waitFor(limiter, 1, 0);
+        limiter.release();
+        write.get(10, TimeUnit.SECONDS);
+        limiter.release();
+        limiter.acquire(false, 0);
+    }
+
+    private static Callable<Void> acquirer(final RallyRateLimiter limiter, final boolean write) {
+        return new Callable<Void>() {
+            public Void call() throws IOException {
+                limiter.acquire(write, TimeUnit.SECONDS.toMillis(10));
+                return null;
+            }
+        };
+    }
+
+    private static void waitFor(RallyRateLimiter limiter, int waitingWrites, int waitingReads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (limiter.getWaitingWrites() != waitingWrites || limiter.getWaitingReads() != waitingReads) {
+            if (System.currentTimeMillis() > deadline)
+                fail("Expected " + waitingWrites + " writes and " + waitingReads + " reads waiting, not "
+                        + limiter.getWaitingWrites() + " and " + limiter.getWaitingReads());
+            Thread.sleep(5);
+        }
+    }
+
+    private static void assertRefused(RallyRateLimiter limiter, boolean write) {
+        try {
+            limiter.acquire(write, 0);
+            fail("Expected no turn");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+}
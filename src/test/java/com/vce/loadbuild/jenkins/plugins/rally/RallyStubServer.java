@@ -0,0 +1,486 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+
+/**
+ * In-process stand in for the parts of the Rally web services API the plugin uses, so that
+ * tests run without Rally and benchmarks and load tests measure the plugin rather than the
+ * network to Rally.
+ * <p>
+ * Serves the workspace, projects, users, tags and the Defect type definition with its
+ * attributes and allowed values of a {@link Fixtures}, and creates or updates whatever is
+ * posted to it. The defects it created can be read back and closed with {@link #setDefectState}. Latency, server errors and 429 throttling can be injected, also while running.
+ * <p>
+ * Run on its own with {@link #main(String[])} and point the "Rally Server URL" of the global
+ * configuration at it, see README.txt.
+ *
+ * @author Frank Rouse
+ */
+public class RallyStubServer {
+
+    private static final String WSAPI = "/slm/webservice/v2.0";
+
+    // The Defect attributes whose allowed values the plugin reads.
+    static final String[] DEFECT_FIELDS = {"Priority", "Severity", "Defect Category", "Defect Type",
+            "Found in Version", "Where Found", "Where Introduced?", "Method to identify similar defects"};
+
+    static final String WORKSPACE = "Stub Workspace";
+    static final String LAST_UPDATE_DATE = "2015-01-01T00:00:00.000Z";
+
+    // A quoted value may hold parentheses, e.g. (Name = "Build Release Management (SCM)").
+    private static final Pattern CONDITION = Pattern.compile("\\(\\s*(\\w+)\\s*(=|>=)\\s*(?:\"([^\"]*)\"|([^\\s\")]*))\\s*\\)");
+
+    private final HttpServer server;
+    private final ExecutorService handlers = Executors.newCachedThreadPool();
+    private final String base;
+    private final Fixtures fixtures;
+    private final List<JsonObject> projects = new ArrayList<JsonObject>();
+    private final AtomicInteger nextObjectId = new AtomicInteger(100000);
+    // State of every defect created, by its ObjectID.
+    private final Map<Integer, String> defectStates = new ConcurrentHashMap<Integer, String>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final Random random = new Random();
+
+    private volatile long latencyMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile double throttleRate = 0;
+
+    /**
+     * Generated fixtures on a free port.
+     * @param latencyMillis - how long every response is held back.
+     */
+    public RallyStubServer(int projectCount, int allowedValues, long latencyMillis) throws IOException {
+        this(0, Fixtures.generated(projectCount, allowedValues));
+        setLatencyMillis(latencyMillis);
+    }
+
+    /**
+     * @param port - 0 for any free port.
+     */
+    public RallyStubServer(int port, Fixtures fixtures) throws IOException {
+        this.fixtures = fixtures;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.base = "http://127.0.0.1:" + server.getAddress().getPort() + WSAPI;
+        Map<String, Integer> objectIds = new HashMap<String, Integer>();
+        for (int i = 0; i < fixtures.projects.size(); i++)
+            objectIds.put(fixtures.projects.get(i)[0], 1000 + i);
+        for (String[] fixture : fixtures.projects) {
+            JsonObject project = reference("project", objectIds.get(fixture[0]));
+            project.addProperty("Name", fixture[0]);
+            Integer parentId = fixture[1] == null ? null : objectIds.get(fixture[1]);
+            project.add("Parent", parentId == null ? JsonNull.INSTANCE : reference("project", parentId));
+            project.addProperty("LastUpdateDate", LAST_UPDATE_DATE);
+            projects.add(project);
+        }
+        server.createContext(WSAPI, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    static String projectName(int i) {
+        return "Project " + i;
+    }
+
+    /**
+     * @return the server to give to a {@link RallyClientPool}, or to enter as the Rally Server URL.
+     */
+    public URI getUri() {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    /**
+     * @return number of requests received so far, including the failed ones.
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param errorRate - share of requests, from 0 to 1, answered with a 500 error.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param throttleRate - share of requests, from 0 to 1, answered with 429 Too Many Requests.
+     */
+    public void setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+    }
+
+    /**
+     * @param defectRef - a defect created through the stub.
+     * @param state - e.g. "Closed".
+     */
+    public void setDefectState(String defectRef, String state) {
+        defectStates.put(Integer.valueOf(defectRef.substring(defectRef.lastIndexOf('/') + 1)), state);
+    }
+
+    public void stop() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        drain(exchange.getRequestBody());
+        if (latencyMillis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        double roll;
+        synchronized (random) {
+            roll = random.nextDouble();
+        }
+        if (roll < throttleRate) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 429, "Too Many Requests");
+            return;
+        }
+        if (roll < throttleRate + errorRate) {
+            send(exchange, 500, "Injected server error");
+            return;
+        }
+
+        String path = exchange.getRequestURI().getPath().substring(WSAPI.length());
+        String[] segments = path.substring(1).toLowerCase(Locale.ENGLISH).split("/");
+        Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+        JsonObject body = new JsonObject();
+        if ("POST".equals(exchange.getRequestMethod()) && path.endsWith("/create")) {
+            int objectId = nextObjectId.incrementAndGet();
+            if ("defect".equals(segments[0]))
+                defectStates.put(objectId, "Submitted");
+            body.add("CreateResult", operationResult(reference(segments[0], objectId)));
+        } else if ("POST".equals(exchange.getRequestMethod()) && segments.length == 2) {
+            // An update of e.g. /defect/123
+            body.add("OperationResult", operationResult(reference(segments[0], Integer.parseInt(segments[1]))));
+        } else if ("defect".equals(segments[0]) && segments.length == 2) {
+            // A read of e.g. /defect/123
+            String state = defectStates.get(Integer.valueOf(segments[1]));
+            if (state == null) {
+                JsonObject result = operationResult(null);
+                result.getAsJsonArray("Errors").add(new JsonPrimitive("Cannot find object to read"));
+                body.add("OperationResult", result);
+            } else {
+                JsonObject defect = reference("defect", Integer.parseInt(segments[1]));
+                defect.addProperty("State", state);
+                defect.addProperty("ScheduleState", "Defined");
+                defect.add("Errors", new JsonArray());
+                defect.add("Warnings", new JsonArray());
+                body.add("Defect", defect);
+            }
+        } else {
+            body.add("QueryResult", page(rows(segments, params.get("query")), params));
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, 200, body.toString());
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private List<JsonObject> rows(String[] segments, String query) {
+        Map<String, Set<String>> equal = new HashMap<String, Set<String>>();
+        String updatedSince = null;
+        if (query != null) {
+            Matcher condition = CONDITION.matcher(query);
+            while (condition.find()) {
+                String value = condition.group(3) != null ? condition.group(3) : condition.group(4);
+                if (">=".equals(condition.group(2))) {
+                    updatedSince = value;
+                } else {
+                    if (!equal.containsKey(condition.group(1)))
+                        equal.put(condition.group(1), new HashSet<String>());
+                    equal.get(condition.group(1)).add(value.toLowerCase(Locale.ENGLISH));
+                }
+            }
+        }
+        List<JsonObject> rows = new ArrayList<JsonObject>();
+        String type = segments[0];
+        if (type.startsWith("workspace")) {
+            JsonObject workspace = reference("workspace", 1);
+            workspace.addProperty("Name", fixtures.workspace);
+            rows.add(workspace);
+        } else if (type.equals("project")) {
+            for (JsonObject project : projects)
+                if (updatedSince == null || LAST_UPDATE_DATE.compareTo(updatedSince) >= 0)
+                    rows.add(project);
+        } else if (type.equals("typedefinition") && segments.length == 1) {
+            JsonObject typeDefinition = reference("typedefinition", 1);
+            typeDefinition.addProperty("Name", "Defect");
+            typeDefinition.add("Attributes", collection(base + "/typedefinition/1/Attributes", fixtures.fields.size()));
+            rows.add(typeDefinition);
+        } else if (type.equals("typedefinition")) {
+            int i = 0;
+            for (Map.Entry<String, List<String>> field : fixtures.fields.entrySet()) {
+                i++;
+                JsonObject attribute = reference("attributedefinition", i);
+                attribute.addProperty("Name", field.getKey());
+                attribute.add("AllowedValues", collection(base + "/attributedefinition/" + i + "/AllowedValues", field.getValue().size()));
+                rows.add(attribute);
+            }
+        } else if (type.equals("attributedefinition") && segments.length > 1) {
+            List<List<String>> values = new ArrayList<List<String>>(fixtures.fields.values());
+            int i = Integer.parseInt(segments[1]) - 1;
+            if (i >= 0 && i < values.size()) {
+                for (String allowedValue : values.get(i)) {
+                    JsonObject value = new JsonObject();
+                    value.addProperty("StringValue", allowedValue);
+                    rows.add(value);
+                }
+            }
+        } else if (type.equals("user") && equal.containsKey("UserName")) {
+            for (String userName : equal.get("UserName")) {
+                if (fixtures.users == null || fixtures.users.contains(userName)) {
+                    JsonObject user = reference("user", 1 + Math.abs(userName.hashCode() % 100000));
+                    user.addProperty("UserName", userName);
+                    rows.add(user);
+                }
+            }
+        } else if (type.equals("tag") && equal.containsKey("Name")) {
+            String tagName = equal.get("Name").iterator().next();
+            if (fixtures.tags == null || fixtures.tags.contains(tagName)) {
+                JsonObject tag = reference("tag", 1 + Math.abs(tagName.hashCode() % 100000));
+                tag.addProperty("Name", tagName);
+                rows.add(tag);
+            }
+        }
+        // Name conditions narrow every type down, the same way Rally does without regard to case.
+        if (equal.containsKey("Name")) {
+            List<JsonObject> matching = new ArrayList<JsonObject>();
+            for (JsonObject row : rows)
+                if (row.has("Name") && equal.get("Name").contains(row.get("Name").getAsString().toLowerCase(Locale.ENGLISH)))
+                    matching.add(row);
+            rows = matching;
+        }
+        return rows;
+    }
+
+    private static JsonObject page(List<JsonObject> rows, Map<String, String> params) {
+        int start = params.containsKey("start") ? Integer.parseInt(params.get("start")) : 1;
+        int pageSize = params.containsKey("pagesize") ? Integer.parseInt(params.get("pagesize")) : 20;
+        JsonArray results = new JsonArray();
+        for (int i = start - 1; i < rows.size() && i < start - 1 + pageSize; i++)
+            results.add(rows.get(i));
+        JsonObject result = new JsonObject();
+        result.add("Errors", new JsonArray());
+        result.add("Warnings", new JsonArray());
+        result.addProperty("TotalResultCount", rows.size());
+        result.addProperty("StartIndex", start);
+        result.addProperty("PageSize", pageSize);
+        result.add("Results", results);
+        return result;
+    }
+
+    private static JsonObject operationResult(JsonObject object) {
+        JsonObject result = new JsonObject();
+        result.add("Errors", new JsonArray());
+        result.add("Warnings", new JsonArray());
+        if (object != null)
+            result.add("Object", object);
+        return result;
+    }
+
+    private JsonObject reference(String type, int objectId) {
+        JsonObject object = new JsonObject();
+        object.addProperty("_ref", base + "/" + type + "/" + objectId);
+        object.addProperty("ObjectID", objectId);
+        return object;
+    }
+
+    private static JsonObject collection(String ref, int count) {
+        JsonObject collection = new JsonObject();
+        collection.addProperty("_ref", ref);
+        collection.addProperty("Count", count);
+        return collection;
+    }
+
+    private static Map<String, String> parameters(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null)
+            return params;
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0)
+                params.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"), URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // Discard the posted object, the stub does not keep it.
+        }
+        in.close();
+    }
+
+
+    /**
+     * What the stub knows about. Users and tags are null when any name should be found.
+     */
+    public static final class Fixtures {
+        private String workspace = WORKSPACE;
+        // Name and parent name, null for a top level project.
+        private final List<String[]> projects = new ArrayList<String[]>();
+        private Set<String> users = null;
+        private Set<String> tags = null;
+        private final Map<String, List<String>> fields = new LinkedHashMap<String, List<String>>();
+
+        /**
+         * @return projectCount projects, ten to a parent, and allowedValues values for every Defect field.
+         */
+        public static Fixtures generated(int projectCount, int allowedValues) {
+            Fixtures fixtures = new Fixtures();
+            for (int i = 0; i < projectCount; i++)
+                fixtures.projects.add(new String[] {projectName(i), i == 0 ? null : projectName((i - 1) / 10)});
+            for (String field : DEFECT_FIELDS) {
+                List<String> values = new ArrayList<String>();
+                for (int i = 0; i < allowedValues; i++)
+                    values.add("Value " + i);
+                fixtures.fields.put(field, values);
+            }
+            return fixtures;
+        }
+
+        /**
+         * Reads fixtures such as src/benchmark/rally-stub-fixtures.json. Anything left out is generated.
+         */
+        public static Fixtures read(File file) throws IOException {
+            Fixtures fixtures = generated(0, 0);
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                JsonObject json = new JsonParser().parse(reader).getAsJsonObject();
+                if (json.has("workspace"))
+                    fixtures.workspace = json.get("workspace").getAsString();
+                if (json.has("projects")) {
+                    for (JsonElement element : json.getAsJsonArray("projects")) {
+                        JsonObject project = element.getAsJsonObject();
+                        JsonElement parent = project.get("parent");
+                        fixtures.projects.add(new String[] {project.get("name").getAsString(),
+                                parent == null || parent.isJsonNull() ? null : parent.getAsString()});
+                    }
+                }
+                if (json.has("users"))
+                    fixtures.users = lowerCase(json.getAsJsonArray("users"));
+                if (json.has("tags"))
+                    fixtures.tags = lowerCase(json.getAsJsonArray("tags"));
+                if (json.has("fields")) {
+                    for (Map.Entry<String, JsonElement> field : json.getAsJsonObject("fields").entrySet()) {
+                        List<String> values = new ArrayList<String>();
+                        for (JsonElement value : field.getValue().getAsJsonArray())
+                            values.add(value.getAsString());
+                        fixtures.fields.put(field.getKey(), values);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return fixtures;
+        }
+
+        private static Set<String> lowerCase(JsonArray names) {
+            Set<String> set = new HashSet<String>();
+            for (JsonElement name : names)
+                set.add(name.getAsString().toLowerCase(Locale.ENGLISH));
+            return set;
+        }
+    }
+
+
+    /**
+     * Runs the stub until the process is stopped, e.g.
+     * <pre>
+     * --port 8089 --fixtures src/benchmark/rally-stub-fixtures.json --latency 50 --error-rate 0.01 --throttle-rate 0.05
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8089;
+        Fixtures fixtures = Fixtures.generated(500, 10);
+        long latency = 0;
+        double errorRate = 0;
+        double throttleRate = 0;
+        List<String> arguments = Arrays.asList(args);
+        for (int i = 0; i + 1 < arguments.size(); i += 2) {
+            String name = arguments.get(i);
+            String value = arguments.get(i + 1);
+            if (name.equals("--port"))
+                port = Integer.parseInt(value);
+            else if (name.equals("--fixtures"))
+                fixtures = Fixtures.read(new File(value));
+            else if (name.equals("--latency"))
+                latency = Long.parseLong(value);
+            else if (name.equals("--error-rate"))
+                errorRate = Double.parseDouble(value);
+            else if (name.equals("--throttle-rate"))
+                throttleRate = Double.parseDouble(value);
+            else
+                throw new IllegalArgumentException("Unknown option " + name);
+        }
+        RallyStubServer stub = new RallyStubServer(port, fixtures);
+        stub.setLatencyMillis(latency);
+        stub.setErrorRate(errorRate);
+        stub.setThrottleRate(throttleRate);
+        System.out.println("Rally stub listening on " + stub.getUri() + " for workspace \"" + fixtures.workspace + "\"");
+    }
+}
@@ -0,0 +1,147 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * The queries of {@link RallyUtils} and {@link RallyProjectIndex} against a {@link RallyStubServer}
+ * serving src/benchmark/rally-stub-fixtures.json.
+ *
+ * @author Frank Rouse
+ */
+public class RallyUtilsTest {
+
+    static final File FIXTURES = new File("src/benchmark/rally-stub-fixtures.json");
+    static final String WORKSPACE = "VCE";
+    // The default project of the job configuration, its name has parentheses.
+    static final String DEFAULT_PROJECT = "Build Release Management (SCM)";
+
+    private RallyStubServer stub;
+    private RallyClientPool rally;
+    private ExecutorService executor;
+    private String workspaceRef;
+
+    @Before
+    public void setUp() throws IOException {
+        stub = new RallyStubServer(0, RallyStubServer.Fixtures.read(FIXTURES));
+        rally = new RallyClientPool(stub.getUri(), "test");
+        executor = Executors.newFixedThreadPool(4);
+        workspaceRef = RallyUtils.getWorkspaceReference(WORKSPACE, rally);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        rally.close();
+        stub.stop();
+    }
+
+    @Test
+    public void workspaceIsFound() {
+        assertNotNull(workspaceRef);
+        assertTrue(workspaceRef, workspaceRef.startsWith("/workspace/"));
+    }
+
+    @Test
+    public void projectWithParenthesesInItsNameIsFound() throws IOException {
+        assertNotNull(RallyUtils.getProjectReference(workspaceRef, DEFAULT_PROJECT, rally));
+        assertNotNull(RallyUtils.getProjectReference(workspaceRef, DEFAULT_PROJECT.toUpperCase(), rally));
+    }
+
+    @Test
+    public void unknownProjectIsNotFound() throws IOException {
+        assertNull(RallyUtils.getProjectReference(workspaceRef, "No Such Project", rally));
+    }
+
+    @Test
+    public void projectIndexFindsNamesAndPaths() throws IOException {
+        RallyProjectIndex index = new RallyProjectIndex(workspaceRef);
+        index.refresh(rally, executor);
+        String vision = index.lookup("vision");
+        assertNotNull(vision);
+        assertEquals(vision, index.lookup(DEFAULT_PROJECT + RallyProjectIndex.PATH_SEPARATOR + "Vision"));
+        assertEquals(RallyUtils.getProjectReference(workspaceRef, DEFAULT_PROJECT, rally), index.lookup(DEFAULT_PROJECT));
+        assertEquals(Arrays.asList("Build Release Management (SCM)", "Build Release Management (SCM) > Symphony",
+                "Build Release Management (SCM) > Vision"), index.complete("build", 10));
+        assertEquals(Arrays.asList("Symphony"), index.complete("SYM", 10));
+    }
+
+    @Test
+    public void concurrentRefreshesShareOneRead() throws Exception {
+        final RallyProjectIndex index = new RallyProjectIndex(workspaceRef);
+        index.refresh(rally, executor);
+        final String vision = index.lookup("vision");
+        stub.setLatencyMillis(300);
+        int before = stub.getRequestCount();
+        Callable<Void> refresh = new Callable<Void>() {
+            public Void call() throws IOException {
+                index.refresh(rally, null);
+                return null;
+            }
+        };
+        Future<Void> first = executor.submit(refresh);
+        Thread.sleep(100);
+        Future<Void> second = executor.submit(refresh);
+        Thread.sleep(50);
+        // Lookups are answered from the previous read while Rally is slow.
+        long started = System.nanoTime();
+        assertEquals(vision, index.lookup("vision"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 100);
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        // The incremental read of the first refresh is one page, the second refresh waited for it.
+        assertEquals(1, stub.getRequestCount() - before);
+    }
+
+    @Test
+    public void severalUsersAreReadInOneQuery() throws IOException {
+        int before = stub.getRequestCount();
+        Map<String, String> userRefs = RallyUtils.getUserReferences(
+                Arrays.asList("pebuildrelease@vce.com", "nobody@vce.com"), rally);
+        assertEquals(1, stub.getRequestCount() - before);
+        assertEquals(1, userRefs.size());
+        assertEquals(RallyUtils.getUserReference("pebuildrelease@vce.com", rally), userRefs.get("pebuildrelease@vce.com"));
+    }
+
+    @Test
+    public void allowedValuesOfSeveralFieldsAreRead() throws IOException {
+        DefectMetadata metadata = RallyUtils.loadAllowedFieldValues("Defect", Arrays.asList("Priority", "Defect Type"),
+                workspaceRef, rally, executor);
+        assertEquals(Arrays.asList("High Attention", "Low", "Normal", "Resolve Immediately"), metadata.getAllowedValues("Priority"));
+        assertEquals(Arrays.asList("Defect", "Enhancement"), metadata.getAllowedValues("Defect Type"));
+    }
+
+    @Test
+    public void everyPageIsRead() throws IOException {
+        RallyStubServer generated = new RallyStubServer(450, 1, 0);
+        RallyClientPool generatedRally = new RallyClientPool(generated.getUri(), "test");
+        try {
+            String generatedWorkspace = RallyUtils.getWorkspaceReference(RallyStubServer.WORKSPACE, generatedRally);
+            List<String> sequential = RallyUtils.listAllRallyProjects(generatedWorkspace, generatedRally);
+            List<String> concurrent = RallyUtils.listAllRallyProjects(generatedWorkspace, generatedRally, executor);
+            assertEquals(450, sequential.size());
+            assertEquals(sequential, concurrent);
+        } finally {
+            generatedRally.close();
+            generated.stop();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.vce.loadbuild.jenkins.plugins.rally;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+
+/**
+ * Single flight loading, invalidation during a load, expiry, eviction and stale while revalidate.
+ *
+ * @author Frank Rouse
+ */
+public class TtlCacheTest {
+
+    private static final long TTL = TimeUnit.MINUTES.toMillis(30);
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        final TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        final BlockingLoader loader = new BlockingLoader("value");
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++)
+            results.add(callers.submit(new Callable<String>() {
+                public String call() throws IOException {
+                    return cache.get("key", loader);
+                }
+            }));
+        loader.awaitStarted();
+        // Give the other callers time to miss as well.
+        Thread.sleep(100);
+        loader.release();
+        for (Future<String> result : results)
+            assertEquals("value", result.get(10, TimeUnit.SECONDS));
+        assertEquals(1, loader.calls.get());
+        assertEquals("value", cache.get("key"));
+    }
+
+    @Test
+    public void valueLoadedWhileInvalidatedIsNotCached() throws Exception {
+        final TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        final BlockingLoader loader = new BlockingLoader("before invalidation");
+        Future<String> result = callers.submit(new Callable<String>() {
+            public String call() throws IOException {
+                return cache.get("key", loader);
+            }
+        });
+        loader.awaitStarted();
+        cache.invalidate("key");
+        loader.release();
+        // The caller still gets its answer, later callers do not.
+        assertEquals("before invalidation", result.get(10, TimeUnit.SECONDS));
+        assertNull(cache.get("key"));
+    }
+
+    @Test
+    public void failedLoadIsNotCached() throws IOException {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        try {
+            cache.get("key", new Callable<String>() {
+                public String call() throws IOException {
+                    throw new IOException("Rally is down");
+                }
+            });
+            fail("The failure of the loader should reach the caller");
+        } catch (IOException e) {
+            assertEquals("Rally is down", e.getMessage());
+        }
+        assertEquals("value", cache.get("key", new FixedLoader("value")));
+    }
+
+    @Test
+    public void nullIsNotCached() throws IOException {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        FixedLoader loader = new FixedLoader(null);
+        assertNull(cache.get("key", loader));
+        assertNull(cache.get("key", loader));
+        assertEquals(2, loader.calls.get());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void negativeEntryExpires() throws Exception {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        cache.put("unknown user", "", 50);
+        cache.put("known user", "/user/1");
+        assertEquals("", cache.get("unknown user"));
+        Thread.sleep(100);
+        assertNull(cache.get("unknown user"));
+        assertEquals("/user/1", cache.get("known user"));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(Arrays.asList("a", "c"), cache.keys());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void expiredValueIsServedWhileReloaded() throws IOException {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        cache.put("key", "old", 0);
+        FixedLoader loader = new FixedLoader("new");
+        final List<Runnable> reloads = new ArrayList<Runnable>();
+        Executor later = new Executor() {
+            public void execute(Runnable command) {
+                reloads.add(command);
+            }
+        };
+        assertEquals("old", cache.get("key", loader, later));
+        // A second caller neither waits nor starts another reload.
+        assertEquals("old", cache.get("key", loader, later));
+        assertEquals(1, reloads.size());
+        reloads.get(0).run();
+        assertEquals(1, loader.calls.get());
+        assertEquals("new", cache.get("key"));
+    }
+
+    @Test
+    public void missWithoutStaleValueWaitsForTheLoader() throws IOException {
+        TtlCache<String, String> cache = new TtlCache<String, String>(TTL, 10);
+        Executor never = new Executor() {
+            public void execute(Runnable command) {
+                fail("Nothing to serve meanwhile, the caller loads");
+            }
+        };
+        assertEquals("value", cache.get("key", new FixedLoader("value"), never));
+    }
+
+
+    private static class FixedLoader implements Callable<String> {
+        final AtomicInteger calls = new AtomicInteger();
+        private final String value;
+
+        FixedLoader(String value) {
+            this.value = value;
+        }
+
+        public String call() {
+            calls.incrementAndGet();
+            return value;
+        }
+    }
+
+
+    /**
+     * Holds the load until released, so that other callers can be lined up behind it.
+     */
+    private static class BlockingLoader extends FixedLoader {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+
+        BlockingLoader(String value) {
+            super(value);
+        }
+
+        @Override
+        public String call() {
+            started.countDown();
+            try {
+                released.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.call();
+        }
+
+        void awaitStarted() throws InterruptedException {
+            if (!started.await(10, TimeUnit.SECONDS))
+                fail("The loader was never called");
+        }
+
+        void release() {
+            released.countDown();
+        }
+    }
+}